@@ -0,0 +1,68 @@
+package cs348c.particles;
+
+import java.io.*;
+import java.lang.management.*;
+
+/**
+ * Measures the heap allocation rate of ParticleSystem.advanceTime on a
+ * scene, to check that the solver allocates nothing per neighbor pair.
+ * Runs single-threaded so that all allocation happens on the calling
+ * thread, where the JVM can count it.
+ *
+ * Usage: make bench-alloc [ARGS="frames/dam-break.txt 200"]
+ */
+public class AllocationBenchmark
+{
+    public static void main(String[] args) throws IOException
+    {
+        String scene = (args.length > 0) ? args[0] : "frames/dam-break.txt";
+        int    steps = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+        double dt    = HeadlessRunner.DEFAULT_DT;
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            System.err.println("Per-thread allocation counters are not supported by this JVM.");
+            return;
+        }
+        com.sun.management.ThreadMXBean counters = (com.sun.management.ThreadMXBean) threads;
+        long tid = Thread.currentThread().getId();
+
+        ParticleSystem PS = new ParticleSystem();
+        PS.setThreads(1);
+        FrameIO.loadFrame(PS, new File(scene));
+
+        // Warm up: lets the JIT compile the solver and the arrays grow
+        // to their steady-state size.
+        for (int k = 0; k < steps / 2; k++) PS.advanceTime(dt);
+
+        long pairs   = 0;
+        long gcCount = gcCount();
+        long bytes   = -counters.getThreadAllocatedBytes(tid);
+        long timeNS  = -System.nanoTime();
+        for (int k = 0; k < steps; k++) {
+            PS.advanceTime(dt);
+            pairs += PS.S.Ni.pairs();
+        }
+        timeNS += System.nanoTime();
+        bytes  += counters.getThreadAllocatedBytes(tid);
+        gcCount = gcCount() - gcCount;
+
+        double seconds = timeNS * 1e-9;
+        System.out.println("scene:             "+scene+" ("+PS.S.size()+" particles)");
+        System.out.println("steps:             "+steps+" in "+seconds+"s");
+        System.out.println("allocated:         "+bytes+" bytes");
+        System.out.println("bytes/step:        "+(bytes / (double) steps));
+        System.out.println("bytes/pair:        "+(bytes / (double) Math.max(1, pairs)));
+        System.out.println("allocation rate:   "+(bytes / seconds / (1 << 20))+" MB/s");
+        System.out.println("collections:       "+gcCount);
+    }
+
+    private static long gcCount()
+    {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+}
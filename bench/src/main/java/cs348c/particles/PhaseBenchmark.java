@@ -0,0 +1,116 @@
+package cs348c.particles;
+
+import java.util.concurrent.*;
+import javax.vecmath.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Times the individual phases of ParticleSystem.advanceTime, each run
+ * over all particles exactly as the solver runs it. Phases only rewrite
+ * per-particle outputs, so the fixture stays valid between invocations.
+ *
+ * Run with: make bench [ARGS="PhaseBenchmark -p particles=10000"]
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsPrepend = {"--add-modules", "jdk.incubator.vector"}, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class PhaseBenchmark
+{
+    @Benchmark
+    public void gridBuild(SceneState st)
+    {
+        st.grid.build(st.S, st.pool);
+    }
+
+    @Benchmark
+    public void neighborQuery(SceneState st)
+    {
+        st.S.Ni.build(st.grid, st.S, st.pool);
+    }
+
+    // The solver evaluates the pair kernels inside the lambda pass
+    // (Incompress.calcLambda); this times the evaluation on its own.
+    @Benchmark
+    public void pairKernels(SceneState st)
+    {
+        final ParticleStore S = st.S;
+        st.pool.parallelFor(S.n, (from, to) -> {
+            for (int i = from; i < to; i++) S.density[i] = Incompress.updateDensity(S, i);
+        });
+    }
+
+    @Benchmark
+    public void lambda(SceneState st)
+    {
+        final ParticleStore S = st.S;
+        st.pool.parallelFor(S.n, (from, to) -> {
+            for (int i = from; i < to; i++) S.lambda[i] = Incompress.calcLambda(S, i);
+        });
+    }
+
+    @Benchmark
+    public void deltaP(SceneState st)
+    {
+        final ParticleStore S = st.S;
+        st.pool.parallelFor(S.n, (from, to) -> {
+            for (int i = from; i < to; i++) Incompress.calcDeltaP(S, i);
+        });
+    }
+
+    // Single-precision SIMD versions of the lambda and delta p phases
+    // (VectorSolver); lambdaFloat includes the pair kernels.
+    @Benchmark
+    public void lambdaFloat(SceneState st)
+    {
+        final ParticleStore S = st.S;
+        st.pool.parallelFor(S.n, (from, to) -> st.vector.calcLambda(S, from, to));
+    }
+
+    @Benchmark
+    public void deltaPFloat(SceneState st)
+    {
+        final ParticleStore S = st.S;
+        st.pool.parallelFor(S.n, (from, to) -> st.vector.calcDeltaP(S, from, to));
+    }
+
+    @Benchmark
+    public void vorticity(SceneState st)
+    {
+        final ParticleStore S = st.S;
+        st.pool.parallelFor(S.n, (from, to) -> {
+            for (int i = from; i < to; i++) Vorticity.calcVorticity(S, i);
+        });
+    }
+
+    @Benchmark
+    public void vorticityConfinement(SceneState st)
+    {
+        final ParticleStore S = st.S;
+        st.pool.parallelFor(S.n, (from, to) -> {
+            Vector3d f = new Vector3d();
+            for (int i = from; i < to; i++) {
+                Vorticity.calcFVort(S, i, f);
+                S.dpx[i] = f.x;
+                S.dpy[i] = f.y;
+                S.dpz[i] = f.z;
+            }
+        });
+    }
+
+    @Benchmark
+    public void viscosity(SceneState st)
+    {
+        final ParticleStore S = st.S;
+        st.pool.parallelFor(S.n, (from, to) -> {
+            Vector3d visc = new Vector3d();
+            for (int i = from; i < to; i++) {
+                Viscosity.XPSHViscosity(S, i, visc);
+                S.dpx[i] = visc.x;
+                S.dpy[i] = visc.y;
+                S.dpz[i] = visc.z;
+            }
+        });
+    }
+}
@@ -0,0 +1,63 @@
+package cs348c.particles;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Times advanceTime on a scene whose particle slots have been shuffled,
+ * as the creation order is after the flow has mixed for a while, with
+ * and without periodic Morton reordering (reorderInterval = 0 never
+ * reorders). With reordering, the shuffled scene is reordered once
+ * before warmup, so the measured steps show the steady state of each
+ * setting. Each invocation restarts from that state and runs
+ * SceneState.MEASURED_STEPS steps; the score is the time per step.
+ *
+ * Run with: make bench [ARGS="ReorderBenchmark -p particles=100000"]
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsPrepend = {"--add-modules", "jdk.incubator.vector"}, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class ReorderBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class Shuffled
+    {
+        @Param({"0", "20"})
+        public int reorderInterval;
+
+        @Setup(Level.Trial)
+        public void setUp(SceneState st)
+        {
+            ParticleStore S = st.S;
+            int[] order = new int[S.n];
+            for (int k = 0; k < order.length; k++) order[k] = k;
+            Random random = new Random(348);
+            for (int k = order.length - 1; k > 0; k--) {
+                int j = random.nextInt(k + 1);
+                int t = order[k];
+                order[k] = order[j];
+                order[j] = t;
+            }
+            S.permute(order, st.pool);
+            st.PS.setReorderInterval(reorderInterval);
+            if (reorderInterval > 0) st.PS.reorderParticles();
+            st.saveStart();
+        }
+
+        @Setup(Level.Iteration)
+        public void restart(SceneState st)
+        {
+            st.restart();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SceneState.MEASURED_STEPS)
+    public void advanceTime(SceneState st, Shuffled shuffled)
+    {
+        for (int k = 0; k < SceneState.MEASURED_STEPS; k++) st.PS.advanceTime(st.dt);
+    }
+}
@@ -0,0 +1,59 @@
+package cs348c.particles;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Builds benchmark scenes of a requested size from the scenes in
+ * ./frames/. The scene is tiled side by side along x and z, one copy per
+ * unit box, and the box is widened to hold all copies. Tiling keeps the
+ * particle spacing, and so the neighbor count per particle, of the
+ * original scene; refining the scene instead would grow the neighbor
+ * count with the particle count at a fixed smoothing radius.
+ */
+public class ScaledScene
+{
+    /**
+     * Replaces the particles of PS with whole copies of the named scene
+     * (e.g. "dam-break"), at least particles in total.
+     * @return Number of copies.
+     */
+    public static int load(ParticleSystem PS, String scene, int particles) throws IOException
+    {
+        double[] pos = read(scene);
+        int n = pos.length / 3;
+        int copies = Math.max(1, (particles + n - 1) / n);
+        int side = (int) Math.ceil(Math.sqrt(copies));
+
+        double[] tiled = new double[3 * copies * n];
+        for (int c = 0; c < copies; c++) {
+            double ox = c % side, oz = c / side;
+            for (int k = 0; k < 3 * n; k += 3) {
+                tiled[3 * c * n + k]     = pos[k] + ox;
+                tiled[3 * c * n + k + 1] = pos[k + 1];
+                tiled[3 * c * n + k + 2] = pos[k + 2] + oz;
+            }
+        }
+        PS.reset();
+        PS.setParticles(tiled, copies * n);
+        PS.rightWallLoc = side;
+        PS.boxDepth = (copies + side - 1) / side;
+        return copies;
+    }
+
+    // Reads /frames/<scene>.txt from the classpath in the FrameIO text format.
+    private static double[] read(String scene) throws IOException
+    {
+        InputStream in = ScaledScene.class.getResourceAsStream("/frames/" + scene + ".txt");
+        if (in == null) throw new FileNotFoundException("no scene named " + scene);
+        Scanner s = new Scanner(new BufferedInputStream(in));
+        try {
+            int n = s.nextInt();
+            double[] pos = new double[3 * n];
+            for (int k = 0; k < pos.length; k++) pos[k] = s.nextDouble();
+            return pos;
+        } finally {
+            s.close();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package cs348c.particles;
+
+import java.io.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmark fixture: a scaled scene advanced a few steps, so that the
+ * predicted positions, grid, neighbor lists, pair kernels and lambdas
+ * all hold representative values before any phase is measured. The
+ * single-precision VectorSolver is loaded from the same state.
+ */
+@State(Scope.Benchmark)
+public class SceneState
+{
+    /** Steps taken before measuring, to move away from the lattice start. */
+    static final int SETTLE_STEPS = 3;
+
+    /**
+     * Steps timed per invocation by the benchmarks that advance the
+     * scene; each invocation starts again from the saved state.
+     */
+    static final int MEASURED_STEPS = 10;
+
+    @Param({"cube-drop", "dam-break"})
+    public String scene;
+
+    @Param({"10000", "100000", "1000000"})
+    public int particles;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    ParticleSystem PS;
+    ParticleStore S;
+    WorkerPool pool;
+    Grid grid;
+    VectorSolver vector;
+    double dt = HeadlessRunner.DEFAULT_DT;
+
+    /** State that restart() returns to, saved by saveStart(). */
+    private final Checkpoint start = new Checkpoint();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        PS = new ParticleSystem();
+        PS.setThreads(threads);
+        ScaledScene.load(PS, scene, particles);
+        for (int k = 0; k < SETTLE_STEPS; k++) PS.advanceTime(dt);
+
+        S = PS.S;
+        pool = new WorkerPool(threads);
+        grid = new Grid();
+        grid.build(S, pool);
+        S.Ni.build(grid, S, pool);
+        pool.parallelFor(S.n, (from, to) -> {
+            for (int i = from; i < to; i++) S.lambda[i] = Incompress.calcLambda(S, i);
+        });
+
+        vector = new VectorSolver(Constants.H);
+        vector.ensureCapacity(S);
+        pool.parallelFor(S.n, (from, to) -> {
+            vector.load(S, from, to);
+            vector.calcLambda(S, from, to);
+        });
+        saveStart();
+    }
+
+    /** Saves the current state of PS as the one restart() returns to. */
+    void saveStart() {
+        PS.saveCheckpoint(start);
+    }
+
+    /**
+     * Returns PS to the saved state, so that every measured invocation
+     * steps the same fluid whatever the speed of the solver.
+     */
+    void restart() {
+        PS.loadCheckpoint(start);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        pool.shutdown();
+        PS.setThreads(1);
+    }
+}
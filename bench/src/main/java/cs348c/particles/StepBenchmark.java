@@ -0,0 +1,46 @@
+package cs348c.particles;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Times full ParticleSystem.advanceTime steps. Each invocation restarts
+ * from the settled scene and runs SceneState.MEASURED_STEPS steps, so
+ * solver changes are compared on the same fluid states; the score is
+ * the time per step.
+ *
+ * Run with: make bench [ARGS="StepBenchmark -p threads=8"]
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsPrepend = {"--add-modules", "jdk.incubator.vector"}, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class StepBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class Precision
+    {
+        @Param({"double", "float"})
+        public String precision;
+
+        @Setup(Level.Trial)
+        public void setUp(SceneState st)
+        {
+            st.PS.setSinglePrecision(precision.equals("float"));
+        }
+
+        @Setup(Level.Iteration)
+        public void restart(SceneState st)
+        {
+            st.restart();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SceneState.MEASURED_STEPS)
+    public void advanceTime(SceneState st, Precision p)
+    {
+        for (int k = 0; k < SceneState.MEASURED_STEPS; k++) st.PS.advanceTime(st.dt);
+    }
+}
@@ -0,0 +1,135 @@
+package cs348c.particles;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * Appends frames to a FrameArchive on a background thread. submit()
+ * only copies the particle state into a recycled frame buffer; the
+ * archive writes happen on the writer thread. When all buffers are
+ * waiting to be written, submit() blocks until one is free, so a slow
+ * disk slows the caller down instead of dropping frames.
+ */
+public class AsyncArchiveWriter implements Closeable
+{
+    /** Number of frame buffers in flight. */
+    private static final int DEPTH = 3;
+
+    /** Queued after the last frame to stop the writer thread. */
+    private static final FrameArchive.Frame END = new FrameArchive.Frame();
+
+    private final FrameArchive archive;
+    private final int channels;
+    private final BlockingQueue<FrameArchive.Frame> free    = new ArrayBlockingQueue<FrameArchive.Frame>(DEPTH);
+    private final BlockingQueue<FrameArchive.Frame> written = new ArrayBlockingQueue<FrameArchive.Frame>(DEPTH + 1);
+    private final Thread thread;
+
+    private boolean closed = false;
+
+    /** First error of the writer thread, rethrown by submit() and close(). */
+    private volatile IOException failure = null;
+
+    /**
+     * Opens (or creates) the archive file for appending frames with the
+     * given FrameArchive channels.
+     */
+    public AsyncArchiveWriter(File file, int channels) throws IOException
+    {
+        this(file, channels, -1);
+    }
+
+    /**
+     * Opens the archive file for appending frames after its first keep
+     * frames, dropping any later ones (see FrameArchive.truncate()). A
+     * negative keep keeps all frames.
+     */
+    public AsyncArchiveWriter(File file, int channels, int keep) throws IOException
+    {
+        this.archive = FrameArchive.append(file, channels);
+        if (keep >= 0) {
+            try {
+                archive.truncate(keep);
+            } catch (IOException e) {
+                archive.close();
+                throw e;
+            }
+        }
+        this.channels = channels;
+        for (int k = 0; k < DEPTH; k++) free.add(new FrameArchive.Frame());
+
+        thread = new Thread("pbf-archive-writer") {
+            public void run() {
+                writeLoop();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Copies the current state of PS and queues it to be appended to the
+     * archive. Blocks while all frame buffers are in use.
+     */
+    public synchronized void submit(ParticleSystem PS) throws IOException
+    {
+        if (closed) throw new IOException("archive writer is closed");
+        if (failure != null) throw failure;
+        try {
+            FrameArchive.Frame f = free.take();
+            f.capture(PS, channels);
+            written.put(f);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while queueing a frame");
+        }
+    }
+
+    /**
+     * Writes all queued frames, then closes the archive.
+     */
+    public synchronized void close() throws IOException
+    {
+        if (closed) return;
+        closed = true;
+        // written has room for END even when every buffer is queued
+        written.add(END);
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+
+        try {
+            archive.close();
+        } catch (IOException e) {
+            if (failure == null) failure = e;
+        }
+        if (failure != null) throw failure;
+    }
+
+    private void writeLoop()
+    {
+        while (true) {
+            FrameArchive.Frame f;
+            try {
+                f = written.take();
+            } catch (InterruptedException e) {
+                continue; // only close() stops the writer
+            }
+            if (f == END) return;
+
+            if (failure == null) {
+                try {
+                    archive.append(f);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            free.add(f);
+        }
+    }
+}
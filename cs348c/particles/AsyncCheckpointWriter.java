@@ -0,0 +1,105 @@
+package cs348c.particles;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * Writes Checkpoints on a background thread. submit() only copies the
+ * simulation state into a recycled checkpoint buffer, holding the
+ * ParticleSystem's lock for that copy; the file is written on the writer
+ * thread. When all buffers are waiting to be written, submit() blocks
+ * until one is free.
+ */
+public class AsyncCheckpointWriter implements Closeable
+{
+    /** Number of checkpoint buffers in flight. */
+    private static final int DEPTH = 2;
+
+    /** Queued after the last checkpoint to stop the writer thread. */
+    private static final Checkpoint END = new Checkpoint();
+
+    private final BlockingQueue<Checkpoint> free    = new ArrayBlockingQueue<Checkpoint>(DEPTH);
+    private final BlockingQueue<Checkpoint> written = new ArrayBlockingQueue<Checkpoint>(DEPTH + 1);
+    private final BlockingQueue<File>       files   = new ArrayBlockingQueue<File>(DEPTH + 1);
+    private final Thread thread;
+
+    private boolean closed = false;
+
+    /** First error of the writer thread, rethrown by submit() and close(). */
+    private volatile IOException failure = null;
+
+    public AsyncCheckpointWriter()
+    {
+        for (int k = 0; k < DEPTH; k++) free.add(new Checkpoint());
+
+        thread = new Thread("pbf-checkpoint-writer") {
+            public void run() {
+                writeLoop();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Copies the current state of PS, labeled with step, and queues it to
+     * be written to file. Blocks while all buffers are in use.
+     */
+    public synchronized void submit(ParticleSystem PS, long step, File file) throws IOException
+    {
+        if (closed) throw new IOException("checkpoint writer is closed");
+        if (failure != null) throw failure;
+        try {
+            Checkpoint c = free.take();
+            PS.saveCheckpoint(c);
+            c.step = step;
+            files.put(file);
+            written.put(c);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while queueing a checkpoint");
+        }
+    }
+
+    /** Writes all queued checkpoints and stops the writer thread. */
+    public synchronized void close() throws IOException
+    {
+        if (closed) return;
+        closed = true;
+        // written has room for END even when every buffer is queued
+        written.add(END);
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (failure != null) throw failure;
+    }
+
+    private void writeLoop()
+    {
+        while (true) {
+            Checkpoint c;
+            try {
+                c = written.take();
+            } catch (InterruptedException e) {
+                continue; // only close() stops the writer
+            }
+            if (c == END) return;
+
+            File file = files.remove();
+            if (failure == null) {
+                try {
+                    c.write(file);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            free.add(c);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package cs348c.particles;
+
+import com.jogamp.opengl.*;
+
+/**
+ * Radial attractor: pulls particles within radius of a center point
+ * towards it, with a strength (an acceleration) that falls off
+ * linearly to 0 at the radius. A negative strength repels.
+ */
+public class Attractor implements Force, Checkpoint.Stateful
+{
+    private double cx, cy, cz;
+    private double strength;
+    private double radius;
+
+    public Attractor(double cx, double cy, double cz, double strength, double radius)
+    {
+        setCenter(cx, cy, cz);
+        setStrength(strength, radius);
+    }
+
+    public void setCenter(double cx, double cy, double cz)
+    {
+        this.cx = cx;
+        this.cy = cy;
+        this.cz = cz;
+    }
+
+    /** Sets the acceleration at the center, and the radius of influence. */
+    public void setStrength(double strength, double radius)
+    {
+        if (!(radius > 0)) throw new IllegalArgumentException("radius must be positive: "+radius);
+        this.strength = strength;
+        this.radius = radius;
+    }
+
+    public void applyForce(ParticleStore s, int from, int to, double time, double dt)
+    {
+        double cx = this.cx, cy = this.cy, cz = this.cz;
+        double scale = strength, r = radius, r2 = r * r, invR = 1 / r;
+        double[] m = s.m, px = s.px, py = s.py, pz = s.pz, fx = s.fx, fy = s.fy, fz = s.fz;
+        for (int i = from; i < to; i++) {
+            double dx = cx - px[i];
+            double dy = cy - py[i];
+            double dz = cz - pz[i];
+            double d2 = dx * dx + dy * dy + dz * dz;
+            if (d2 >= r2 || d2 == 0) continue;
+            double d = Math.sqrt(d2);
+            // unit direction times the falloff, 1 - d / r
+            double f = m[i] * scale * (1 - d * invR) / d;
+            fx[i] += f * dx;
+            fy[i] += f * dy;
+            fz[i] += f * dz;
+        }
+    }
+
+    /** Draws the center. */
+    public void display(GL2 gl)
+    {
+        gl.glPointSize(8);
+        gl.glColor3d(strength >= 0 ? 0 : 1, 0.6, strength >= 0 ? 1 : 0);
+        gl.glBegin(GL.GL_POINTS);
+        gl.glVertex3d(cx, cy, cz);
+        gl.glEnd();
+    }
+
+    public double[] getState() {
+        return new double[] { cx, cy, cz, strength, radius };
+    }
+
+    public void setState(double[] state)
+    {
+        setCenter(state[0], state[1], state[2]);
+        setStrength(state[3], state[4]);
+    }
+}
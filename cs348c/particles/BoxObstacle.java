@@ -0,0 +1,52 @@
+package cs348c.particles;
+
+/**
+ * Solid axis-aligned box centered at the position. Particles inside are
+ * pushed out through the nearest face.
+ */
+public class BoxObstacle extends Obstacle
+{
+    /** Half extents. */
+    private final double hx, hy, hz;
+
+    public BoxObstacle(double x, double y, double z, double hx, double hy, double hz)
+    {
+        super(x, y, z);
+        if (!(hx > 0 && hy > 0 && hz > 0)) throw new IllegalArgumentException("box extents must be positive");
+        this.hx = hx;
+        this.hy = hy;
+        this.hz = hz;
+    }
+
+    public void getBounds(double[] b, int offset)
+    {
+        b[offset]     = x - hx;
+        b[offset + 1] = y - hy;
+        b[offset + 2] = z - hz;
+        b[offset + 3] = x + hx;
+        b[offset + 4] = y + hy;
+        b[offset + 5] = z + hz;
+    }
+
+    public int collide(ParticleStore s, int from, int to)
+    {
+        double cx = x, cy = y, cz = z, hx = this.hx, hy = this.hy, hz = this.hz;
+        double[] sx = s.sx, sy = s.sy, sz = s.sz;
+        int moved = 0;
+        for (int i = from; i < to; i++) {
+            double dx = sx[i] - cx, dy = sy[i] - cy, dz = sz[i] - cz;
+            // depth below each face pair; all positive inside
+            double px = hx - Math.abs(dx), py = hy - Math.abs(dy), pz = hz - Math.abs(dz);
+            if (px <= 0 || py <= 0 || pz <= 0) continue;
+            if (px <= py && px <= pz) {
+                sx[i] = cx + ((dx < 0) ? -hx : hx);
+            } else if (py <= pz) {
+                sy[i] = cy + ((dy < 0) ? -hy : hy);
+            } else {
+                sz[i] = cz + ((dz < 0) ? -hz : hz);
+            }
+            moved++;
+        }
+        return moved;
+    }
+}
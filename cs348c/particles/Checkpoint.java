@@ -0,0 +1,383 @@
+package cs348c.particles;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Complete simulation state of a ParticleSystem, from which a run can be
+ * resumed with a bitwise identical continuation. Filled by
+ * ParticleSystem.saveCheckpoint() and applied by loadCheckpoint().
+ *
+ * Per-particle state is kept in slot order, so the solver visits the
+ * particles in the same order after a restart. Only state that carries
+ * over from one step to the next is saved: predicted positions, force
+ * accumulators and position corrections are recomputed every step.
+ * Solver settings (iterations, kernel, threads, reorder interval,
+ * precision) are configuration, not state, and must be set again.
+ *
+ * File layout (all values little-endian):
+ *
+ *   header (72 bytes):
+ *     int    magic "PBFC"
+ *     int    version (2)
+ *     int    n, the number of particles
+ *     int    number of saved forces, obstacles, emitters and sinks
+ *     long   step, a step count chosen by the caller
+ *     double time, rightWallLoc, boxHeight, boxDepth, maxSpeed
+ *     int    steps since the last reorder
+ *     int    number of free particle ids (0 in version 1)
+ *   particles, each array n values in slot order:
+ *     double mass, position x, y, z, undeformed position x, y, z,
+ *            velocity x, y, z, density, lambda, vorticity x, y, z
+ *     int    particle ids
+ *   int    free particle ids, in the order they are reused last to first
+ *   Stateful forces, then obstacles, emitters and sinks, each:
+ *     int    length of the class name, then its UTF-8 bytes
+ *     int    number of parameters, then the parameters as doubles
+ *   int    magic "PBFC" again, to detect truncated files
+ */
+public class Checkpoint
+{
+    /** File name extension of checkpoints. */
+    public static final String EXTENSION = ".pbfc";
+
+    /**
+     * A Force, Obstacle, Emitter or Sink whose parameters are saved with
+     * checkpoints. On restore, the saved parameters are handed to those
+     * of the system in the same order, which must be of the same
+     * classes.
+     */
+    public interface Stateful
+    {
+        /** Current parameters. */
+        double[] getState();
+
+        /** Restores parameters returned by getState(). */
+        void setState(double[] state);
+    }
+
+    private static final int MAGIC       = 0x43464250; // "PBFC"
+    private static final int VERSION     = 2;
+    private static final int HEADER_SIZE = 72;
+
+    /** Number of per-particle double arrays saved. */
+    private static final int DOUBLE_FIELDS = 15;
+
+    /** Size of the I/O buffer. */
+    private static final int BUFFER = 1 << 20;
+
+    /** Step count of the run when the checkpoint was taken, set by the caller. */
+    public long step = 0;
+
+    /** Number of particles. */
+    int n = 0;
+
+    /** ParticleSystem scalars. */
+    double time, rightWallLoc, boxHeight, boxDepth, maxSpeed;
+    int stepsSinceReorder;
+
+    /** Per-particle state, in the order of fields(), and ids. */
+    private double[][] values = new double[DOUBLE_FIELDS][0];
+    private int[] id = new int[0];
+
+    /** Free particle ids of the store. */
+    private int[] freeIds = new int[0];
+    private int freeCount = 0;
+
+    /** Class names and parameters of the Stateful objects. */
+    final ArrayList<String> forceClasses = new ArrayList<String>();
+    final ArrayList<double[]> forceStates = new ArrayList<double[]>();
+
+    private ByteBuffer buffer = null;
+
+    /** Number of particles. */
+    public int size() {
+        return n;
+    }
+
+    /** Simulation time. */
+    public double getTime() {
+        return time;
+    }
+
+    private void ensureCapacity(int n)
+    {
+        if (id.length >= n) return;
+        for (int f = 0; f < DOUBLE_FIELDS; f++) values[f] = new double[n];
+        id = new int[n];
+    }
+
+    private static double[][] fields(ParticleStore S)
+    {
+        return new double[][] {
+            S.m, S.px, S.py, S.pz, S.p0x, S.p0y, S.p0z, S.vx, S.vy, S.vz,
+            S.density, S.lambda, S.wx, S.wy, S.wz
+        };
+    }
+
+    /** Copies the particle state of S. */
+    void copyFrom(ParticleStore S)
+    {
+        n = S.n;
+        ensureCapacity(n);
+        double[][] src = fields(S);
+        for (int f = 0; f < DOUBLE_FIELDS; f++) System.arraycopy(src[f], 0, values[f], 0, n);
+        System.arraycopy(S.id, 0, id, 0, n);
+        freeCount = S.freeCount;
+        if (freeIds.length < freeCount) freeIds = new int[S.freeIds.length];
+        System.arraycopy(S.freeIds, 0, freeIds, 0, freeCount);
+    }
+
+    /** Replaces all particles of S with the saved ones. */
+    void copyTo(ParticleStore S)
+    {
+        S.clear();
+        S.ensureCapacity(n + freeCount);
+        double[][] dst = fields(S);
+        for (int f = 0; f < DOUBLE_FIELDS; f++) System.arraycopy(values[f], 0, dst[f], 0, n);
+        System.arraycopy(id, 0, S.id, 0, n);
+        S.ids = n + freeCount;
+        Arrays.fill(S.slot, 0, S.ids, -1);
+        for (int k = 0; k < n; k++) S.slot[id[k]] = k;
+        if (S.freeIds.length < freeCount) S.freeIds = new int[freeIds.length];
+        System.arraycopy(freeIds, 0, S.freeIds, 0, freeCount);
+        S.freeCount = freeCount;
+        S.n = n;
+    }
+
+    /**
+     * Saves the parameters of the Stateful forces in F, of the obstacles,
+     * emitters and sinks.
+     */
+    void copyFrom(List<Force> F, List<Obstacle> obstacles, List<Emitter> emitters, List<Sink> sinks)
+    {
+        forceClasses.clear();
+        forceStates.clear();
+        for (Force f : F) {
+            if (f instanceof Stateful) save((Stateful) f);
+        }
+        for (Obstacle o : obstacles) save(o);
+        for (Emitter e : emitters) save(e);
+        for (Sink s : sinks) save(s);
+    }
+
+    private void save(Stateful s)
+    {
+        forceClasses.add(s.getClass().getName());
+        forceStates.add(s.getState());
+    }
+
+    /**
+     * Restores the saved parameters into the Stateful forces in F, the
+     * obstacles, emitters and sinks.
+     * @throws IllegalStateException if they do not match the saved ones.
+     */
+    void copyTo(List<Force> F, List<Obstacle> obstacles, List<Emitter> emitters, List<Sink> sinks)
+    {
+        int k = 0;
+        for (Force f : F) {
+            if (f instanceof Stateful) restore((Stateful) f, k++);
+        }
+        for (Obstacle o : obstacles) restore(o, k++);
+        for (Emitter e : emitters) restore(e, k++);
+        for (Sink s : sinks) restore(s, k++);
+        if (k != forceClasses.size()) {
+            throw new IllegalStateException("forces, obstacles, emitters and sinks do not match the checkpoint: "+
+                                            forceClasses);
+        }
+    }
+
+    private void restore(Stateful s, int k)
+    {
+        if (k >= forceClasses.size() || !s.getClass().getName().equals(forceClasses.get(k))) {
+            throw new IllegalStateException("forces, obstacles, emitters and sinks do not match the checkpoint: "+
+                                            forceClasses);
+        }
+        s.setState(forceStates.get(k));
+    }
+
+    /**
+     * Writes the checkpoint to file. The data goes to a temporary file
+     * that then replaces file, so a crash while writing never leaves a
+     * partial checkpoint behind.
+     */
+    public void write(File file) throws IOException
+    {
+        File tmp = new File(file.getPath()+".tmp");
+        FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                                               StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer b = buffer();
+            b.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(forceClasses.size());
+            b.putLong(step);
+            b.putDouble(time).putDouble(rightWallLoc).putDouble(boxHeight).putDouble(boxDepth).putDouble(maxSpeed);
+            b.putInt(stepsSinceReorder).putInt(freeCount);
+
+            for (int f = 0; f < DOUBLE_FIELDS; f++) {
+                double[] a = values[f];
+                for (int k = 0; k < n; ) {
+                    if (b.remaining() < 8) flush(channel, b);
+                    int count = Math.min(n - k, b.remaining() / 8);
+                    b.asDoubleBuffer().put(a, k, count);
+                    b.position(b.position() + 8 * count);
+                    k += count;
+                }
+            }
+            for (int k = 0; k < n; ) {
+                if (b.remaining() < 4) flush(channel, b);
+                int count = Math.min(n - k, b.remaining() / 4);
+                b.asIntBuffer().put(id, k, count);
+                b.position(b.position() + 4 * count);
+                k += count;
+            }
+            for (int k = 0; k < freeCount; ) {
+                if (b.remaining() < 4) flush(channel, b);
+                int count = Math.min(freeCount - k, b.remaining() / 4);
+                b.asIntBuffer().put(freeIds, k, count);
+                b.position(b.position() + 4 * count);
+                k += count;
+            }
+
+            for (int k = 0; k < forceClasses.size(); k++) {
+                byte[] name = forceClasses.get(k).getBytes("UTF-8");
+                double[] state = forceStates.get(k);
+                if (b.remaining() < 8 + name.length + 8 * state.length) flush(channel, b);
+                if (b.remaining() < 8 + name.length + 8 * state.length) {
+                    throw new IOException("force state too large: "+forceClasses.get(k));
+                }
+                b.putInt(name.length).put(name);
+                b.putInt(state.length);
+                for (double v : state) b.putDouble(v);
+            }
+            if (b.remaining() < 4) flush(channel, b);
+            b.putInt(MAGIC);
+            flush(channel, b);
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** Reads a checkpoint written by write(). */
+    public static Checkpoint read(File file) throws IOException
+    {
+        Checkpoint c = new Checkpoint();
+        c.load(file);
+        return c;
+    }
+
+    /** Replaces this checkpoint with the one in file. */
+    public void load(File file) throws IOException
+    {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer b = buffer();
+            b.limit(0);
+            fill(channel, b, HEADER_SIZE, file);
+            if (b.getInt() != MAGIC) throw new IOException(file+" is not a checkpoint");
+            int version = b.getInt();
+            if (version < 1 || version > VERSION) throw new IOException(file+": unsupported version "+version);
+            int count = b.getInt();
+            int forces = b.getInt();
+            if (count < 0 || forces < 0) throw new IOException(file+": bad header");
+            step = b.getLong();
+            time = b.getDouble();
+            rightWallLoc = b.getDouble();
+            boxHeight = b.getDouble();
+            boxDepth = b.getDouble();
+            maxSpeed = b.getDouble();
+            stepsSinceReorder = b.getInt();
+            int free = b.getInt();
+            if (free < 0) throw new IOException(file+": bad header");
+
+            n = 0;
+            freeCount = 0;
+            ensureCapacity(count);
+            if (freeIds.length < free) freeIds = new int[free];
+            for (int f = 0; f < DOUBLE_FIELDS; f++) {
+                double[] a = values[f];
+                for (int k = 0; k < count; ) {
+                    if (b.remaining() < 8) fill(channel, b, 8, file);
+                    int chunk = Math.min(count - k, b.remaining() / 8);
+                    b.asDoubleBuffer().get(a, k, chunk);
+                    b.position(b.position() + 8 * chunk);
+                    k += chunk;
+                }
+            }
+            for (int k = 0; k < count; ) {
+                if (b.remaining() < 4) fill(channel, b, 4, file);
+                int chunk = Math.min(count - k, b.remaining() / 4);
+                b.asIntBuffer().get(id, k, chunk);
+                b.position(b.position() + 4 * chunk);
+                k += chunk;
+            }
+            for (int k = 0; k < free; ) {
+                if (b.remaining() < 4) fill(channel, b, 4, file);
+                int chunk = Math.min(free - k, b.remaining() / 4);
+                b.asIntBuffer().get(freeIds, k, chunk);
+                b.position(b.position() + 4 * chunk);
+                k += chunk;
+            }
+
+            forceClasses.clear();
+            forceStates.clear();
+            for (int k = 0; k < forces; k++) {
+                fill(channel, b, 4, file);
+                int length = b.getInt();
+                if (length < 0 || length > BUFFER / 2) throw new IOException(file+": bad force "+k);
+                fill(channel, b, length + 4, file);
+                byte[] name = new byte[length];
+                b.get(name);
+                int params = b.getInt();
+                if (params < 0 || 8L * params > BUFFER) throw new IOException(file+": bad force "+k);
+                fill(channel, b, 8 * params, file);
+                double[] state = new double[params];
+                for (int p = 0; p < params; p++) state[p] = b.getDouble();
+                forceClasses.add(new String(name, "UTF-8"));
+                forceStates.add(state);
+            }
+            fill(channel, b, 4, file);
+            if (b.getInt() != MAGIC) throw new IOException(file+": bad checkpoint trailer");
+            n = count;
+            freeCount = free;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private ByteBuffer buffer()
+    {
+        if (buffer == null) buffer = ByteBuffer.allocateDirect(BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.clear();
+        return buffer;
+    }
+
+    // Writes out the contents of b and clears it.
+    private static void flush(FileChannel channel, ByteBuffer b) throws IOException
+    {
+        b.flip();
+        while (b.hasRemaining()) channel.write(b);
+        b.clear();
+    }
+
+    // Reads until at least size bytes remain in b.
+    private static void fill(FileChannel channel, ByteBuffer b, int size, File file) throws IOException
+    {
+        if (b.remaining() >= size) return;
+        b.compact();
+        while (b.position() < size) {
+            if (channel.read(b) < 0) throw new EOFException(file+": truncated checkpoint");
+        }
+        b.flip();
+    }
+}
@@ -0,0 +1,103 @@
+package cs348c.particles;
+
+import java.util.*;
+
+/**
+ * Collision handling of predicted particle positions: pushes particles
+ * out of the Obstacles, then clamps them into the box
+ * [0, right] x [0, height] x [0, depth] of the ParticleSystem.
+ *
+ * The obstacles' bounds are gathered once per step by prepare(). For
+ * each range of particles, collide() computes the bounds of the range
+ * and skips every obstacle whose bounds it does not touch; ranges are
+ * chunks of spatially sorted slots (see SpatialOrder), so particles
+ * far from all obstacles cost one pass over their positions.
+ */
+public class Collisions
+{
+    private final ArrayList<Obstacle> obstacles = new ArrayList<Obstacle>();
+
+    /** Obstacles and their bounds (6 per obstacle) for the current step. */
+    private Obstacle[] active = new Obstacle[0];
+    private double[] bounds = new double[0];
+    private int count = 0;
+
+    /** Adds an obstacle (until removed). */
+    public void add(Obstacle o) {
+        obstacles.add(o);
+    }
+
+    public void remove(Obstacle o) {
+        obstacles.remove(o);
+    }
+
+    public List<Obstacle> getObstacles() {
+        return obstacles;
+    }
+
+    /** Moves the obstacles by dt and gathers their bounds for this step. */
+    void prepare(double dt)
+    {
+        count = obstacles.size();
+        active = obstacles.toArray(active);
+        if (bounds.length < 6 * count) bounds = new double[6 * count];
+        for (int k = 0; k < count; k++) {
+            active[k].move(dt);
+            active[k].getBounds(bounds, 6 * k);
+        }
+    }
+
+    /** True if any obstacle is active in this step. */
+    boolean hasObstacles() {
+        return count > 0;
+    }
+
+    /**
+     * Handles the collisions of particles [from, to) of s; see the class
+     * comment. Safe to call concurrently for disjoint ranges.
+     * @return Number of times a particle was moved.
+     */
+    int collide(ParticleStore s, int from, int to, double right, double height, double depth)
+    {
+        int moved = 0;
+        if (count > 0 && from < to) {
+            double[] sx = s.sx, sy = s.sy, sz = s.sz;
+            double minX = sx[from], minY = sy[from], minZ = sz[from];
+            double maxX = minX, maxY = minY, maxZ = minZ;
+            for (int i = from + 1; i < to; i++) {
+                minX = Math.min(minX, sx[i]);  maxX = Math.max(maxX, sx[i]);
+                minY = Math.min(minY, sy[i]);  maxY = Math.max(maxY, sy[i]);
+                minZ = Math.min(minZ, sz[i]);  maxZ = Math.max(maxZ, sz[i]);
+            }
+            double[] b = bounds;
+            for (int k = 0; k < count; k++) {
+                int o = 6 * k;
+                if (maxX < b[o] || maxY < b[o + 1] || maxZ < b[o + 2] ||
+                    minX > b[o + 3] || minY > b[o + 4] || minZ > b[o + 5]) continue;
+                moved += active[k].collide(s, from, to);
+            }
+        }
+        return moved + clampToBox(s, from, to, right, height, depth);
+    }
+
+    // walls at infinity leave that side of the box open
+    private static int clampToBox(ParticleStore s, int from, int to, double right, double height, double depth)
+    {
+        double[] sx = s.sx, sy = s.sy, sz = s.sz;
+        int clamped = 0;
+        for (int i = from; i < to; i++) {
+            double x = sx[i], y = sy[i], z = sz[i];
+            sx[i] = clamp(x, 0., right);
+            sy[i] = clamp(y, 0., height);
+            sz[i] = clamp(z, 0., depth);
+            if (sx[i] != x || sy[i] != y || sz[i] != z) clamped++;
+        }
+        return clamped;
+    }
+
+    private static double clamp(double x, double min, double max) {
+        if (x <= min) return min;
+        if (x >= max) return max;
+        return x;
+    }
+}
@@ -21,7 +21,8 @@ public interface Constants
     public static final double C = 0.00001;
     public static final double V_EPSILON = .0000018;
 
-    public static final int GRID_SIZE = 10;
+    /** Gravitational acceleration (along -y). */
+    public static final double GRAVITY = 10.;
 
 
     /** Camera rotation speed constants. */
@@ -0,0 +1,176 @@
+package cs348c.particles;
+
+/**
+ * Disc-shaped nozzle that injects fluid with a constant velocity. The
+ * disc is centered at the position, faces along the velocity and is
+ * filled with a square lattice of the particle spacing. Every time the
+ * fluid has moved one spacing out of the nozzle, the emitter adds one
+ * layer of particles, placed ahead of the disc by the distance the
+ * fluid went past that spacing, so layers stay one spacing apart for
+ * any time step.
+ *
+ * The lattice is rebuilt when the emitter is reconfigured, not while
+ * emitting, so emitting does not allocate.
+ */
+public class Emitter implements Checkpoint.Stateful
+{
+    /** Spacing of particles at rest density. */
+    public static final double REST_SPACING = Math.cbrt(Constants.PARTICLE_MASS / Constants.RHO);
+
+    private double x, y, z;
+    private double vx, vy, vz;
+    private double radius;
+    private double spacing = REST_SPACING;
+
+    /** Largest number of particles to emit, or -1 for no limit. */
+    private long limit = -1;
+    private long emitted = 0;
+
+    /** Distance the fluid moved since the last layer. */
+    private double travelled;
+
+    /** Interleaved x, y, z offsets of the lattice points from the center. */
+    private double[] lattice = new double[0];
+    private int points = 0;
+
+    public Emitter(double x, double y, double z, double vx, double vy, double vz, double radius)
+    {
+        setPosition(x, y, z);
+        setVelocity(vx, vy, vz);
+        setRadius(radius);
+        // the first step emits
+        travelled = spacing;
+    }
+
+    public void setPosition(double x, double y, double z)
+    {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
+    /** Sets the velocity of the emitted fluid, which must not be zero. */
+    public void setVelocity(double vx, double vy, double vz)
+    {
+        if (!(vx * vx + vy * vy + vz * vz > 0)) {
+            throw new IllegalArgumentException("emitter velocity must not be zero");
+        }
+        this.vx = vx;
+        this.vy = vy;
+        this.vz = vz;
+        buildLattice();
+    }
+
+    public void setRadius(double radius)
+    {
+        if (!(radius > 0)) throw new IllegalArgumentException("radius must be positive: "+radius);
+        this.radius = radius;
+        buildLattice();
+    }
+
+    /** Sets the particle spacing; defaults to REST_SPACING. */
+    public void setSpacing(double spacing)
+    {
+        if (!(spacing > 0)) throw new IllegalArgumentException("spacing must be positive: "+spacing);
+        this.spacing = spacing;
+        buildLattice();
+    }
+
+    /** Stops emitting after limit particles in total; -1 for no limit. */
+    public void setLimit(long limit)
+    {
+        if (limit < -1) throw new IllegalArgumentException("bad limit: "+limit);
+        this.limit = limit;
+    }
+
+    /** Number of particles emitted so far. */
+    public long getEmitted() {
+        return emitted;
+    }
+
+    /** Speed of the emitted fluid. */
+    public double getSpeed() {
+        return Math.sqrt(vx * vx + vy * vy + vz * vz);
+    }
+
+    /** Number of particles in each layer. */
+    public int getLayerSize() {
+        return points;
+    }
+
+    // Fills lattice with the points of a square grid in the plane normal
+    // to the velocity that lie within the radius.
+    private void buildLattice()
+    {
+        if (radius == 0) return; // still being constructed
+        double speed = getSpeed();
+        double dx = vx / speed, dy = vy / speed, dz = vz / speed;
+        // u: any unit vector normal to d, w = d x u
+        double ux, uy, uz;
+        if (Math.abs(dx) < 0.9) {
+            ux = 0;  uy = dz;  uz = -dy;
+        } else {
+            ux = -dz;  uy = 0;  uz = dx;
+        }
+        double ul = Math.sqrt(ux * ux + uy * uy + uz * uz);
+        ux /= ul;  uy /= ul;  uz /= ul;
+        double wx = dy * uz - dz * uy, wy = dz * ux - dx * uz, wz = dx * uy - dy * ux;
+
+        int steps = (int) Math.floor(radius / spacing);
+        int side = 2 * steps + 1;
+        if (lattice.length < 3 * side * side) lattice = new double[3 * side * side];
+        points = 0;
+        for (int a = -steps; a <= steps; a++) {
+            for (int b = -steps; b <= steps; b++) {
+                double s = a * spacing, t = b * spacing;
+                if (s * s + t * t > radius * radius) continue;
+                lattice[3 * points]     = s * ux + t * wx;
+                lattice[3 * points + 1] = s * uy + t * wy;
+                lattice[3 * points + 2] = s * uz + t * wz;
+                points++;
+            }
+        }
+    }
+
+    /**
+     * Advances the emitter by dt and adds the layers of particles that
+     * are due to PS. Called by the ParticleSystem at the end of a step.
+     * @return Number of particles added.
+     */
+    int emit(ParticleSystem PS, double dt)
+    {
+        double speed = getSpeed();
+        double dx = vx / speed, dy = vy / speed, dz = vz / speed;
+        travelled += speed * dt;
+        int added = 0;
+        while (travelled >= spacing) {
+            travelled -= spacing;
+            double ahead = travelled;
+            for (int k = 0; k < points; k++) {
+                if (limit >= 0 && emitted >= limit) return added;
+                PS.emitParticle(x + lattice[3 * k]     + ahead * dx,
+                                y + lattice[3 * k + 1] + ahead * dy,
+                                z + lattice[3 * k + 2] + ahead * dz,
+                                vx, vy, vz);
+                emitted++;
+                added++;
+            }
+        }
+        return added;
+    }
+
+    public double[] getState() {
+        return new double[] { x, y, z, vx, vy, vz, radius, spacing, limit, emitted, travelled };
+    }
+
+    public void setState(double[] state)
+    {
+        setPosition(state[0], state[1], state[2]);
+        this.radius = state[6];
+        this.spacing = state[7];
+        setVelocity(state[3], state[4], state[5]);
+        setLimit((long) state[8]);
+        emitted = (long) state[9];
+        travelled = state[10];
+    }
+}
@@ -5,18 +5,24 @@ import com.jogamp.opengl.*;
 /**
  * Particle system force.
  *
+ * Forces are evaluated over ranges of particle slots, chunk by chunk,
+ * and may run on several worker threads at once for disjoint ranges.
+ * Implementations must therefore only write the force accumulators of
+ * their own range, and should not allocate. Parameters may be changed
+ * between steps, e.g. while holding the ParticleSystem's lock.
+ *
  * @author Doug James, January 2007
  */
 public interface Force
 {
     /**
-     * Causes force to be applied to affected particles.
+     * Adds the force on particles [from, to) of s to their force
+     * accumulators fx, fy, fz.
+     * @param time Simulation time at the start of the step.
+     * @param dt   Length of the step.
      */
-    public void applyForce();
+    public void applyForce(ParticleStore s, int from, int to, double time, double dt);
 
     /** Display any instructive force information, e.g., direction. */
     public void display(GL2 gl);
-
-    /** Reference to the ParticleSystem this force affects. */
-    public ParticleSystem getParticleSystem();
 }
@@ -0,0 +1,416 @@
+package cs348c.particles;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * Binary archive holding all frames of a run in one appendable file.
+ * Frames are written through a memory mapping of exactly their bytes, so
+ * appending a frame is a few bulk copies of float arrays.
+ *
+ * File layout (all values little-endian):
+ *
+ *   header (32 bytes):
+ *     int    magic "PBFA"
+ *     int    version (1)
+ *     int    channels, a bitmask of DENSITY and VELOCITY
+ *     int    reserved
+ *     long   offset of the frame index, 0 while the archive is open
+ *     int    number of frames in the index
+ *     int    reserved
+ *   frames, each:
+ *     int    magic "FRAM"
+ *     int    n, the number of particles
+ *     double simulation time
+ *     float  positions x, y, z (3 * n)
+ *     float  densities (n), if DENSITY is set
+ *     float  velocities x, y, z (3 * n), if VELOCITY is set
+ *   frame index:
+ *     long   file offset of each frame
+ *
+ * An archive that was not closed (e.g. after a crash) has no index; it
+ * is rebuilt by scanning the frame headers when the archive is opened.
+ * Files are never truncated, so bytes of dropped frames or of an old
+ * index may follow; a zeroed int after the last frame or the index
+ * marks where the archive ends.
+ */
+public class FrameArchive implements Closeable
+{
+    /** Channel flag: per-particle density. */
+    public static final int DENSITY  = 1;
+
+    /** Channel flag: per-particle velocity. */
+    public static final int VELOCITY = 2;
+
+    /** File name extension of archives. */
+    public static final String EXTENSION = ".pbfa";
+
+    private static final int MAGIC       = 0x41464250; // "PBFA"
+    private static final int FRAME_MAGIC = 0x4d415246; // "FRAM"
+    private static final int VERSION     = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int FRAME_HEADER_SIZE = 16;
+
+    /** Per-particle values of one frame, as stored in an archive. */
+    public static class Frame
+    {
+        /** Number of particles. */
+        public int n = 0;
+
+        /** Simulation time. */
+        public double time = 0;
+
+        /** Interleaved x, y, z positions (3 * n entries). */
+        public float[] pos = new float[0];
+
+        /** Densities (n entries), if the DENSITY channel is present. */
+        public float[] density = new float[0];
+
+        /** Interleaved x, y, z velocities (3 * n entries), if the VELOCITY channel is present. */
+        public float[] vel = new float[0];
+
+        /** Slots of the particles in id order, used by capture(). */
+        private int[] slot = new int[0];
+
+        void ensureCapacity(int n)
+        {
+            if (density.length >= n) return;
+            pos     = new float[3 * n];
+            density = new float[n];
+            vel     = new float[3 * n];
+        }
+
+        /**
+         * Copies the state of PS needed for the given channels. Holds
+         * PS's lock for the duration of the copy only.
+         */
+        public void capture(ParticleSystem PS, int channels)
+        {
+            synchronized (PS) {
+                ParticleStore S = PS.S;
+                ensureCapacity(S.capacity());
+                n = S.n;
+                time = PS.time;
+                // in id order, so particle k is the same in every frame
+                if (slot.length < n) slot = new int[S.capacity()];
+                S.slotsById(slot);
+                for (int k = 0; k < n; k++) {
+                    int i = slot[k];
+                    pos[3 * k]     = (float) S.px[i];
+                    pos[3 * k + 1] = (float) S.py[i];
+                    pos[3 * k + 2] = (float) S.pz[i];
+                }
+                if ((channels & DENSITY) != 0) {
+                    for (int k = 0; k < n; k++) density[k] = (float) S.density[slot[k]];
+                }
+                if ((channels & VELOCITY) != 0) {
+                    for (int k = 0; k < n; k++) {
+                        int i = slot[k];
+                        vel[3 * k]     = (float) S.vx[i];
+                        vel[3 * k + 1] = (float) S.vy[i];
+                        vel[3 * k + 2] = (float) S.vz[i];
+                    }
+                }
+            }
+        }
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    private final boolean writable;
+    private final int channels;
+
+    /** File offset of each frame. */
+    private long[] index = new long[16];
+    private int frames = 0;
+
+    /** End of the frame data, where the next frame is appended. */
+    private long end;
+
+    /** Mapping of the last appended frame, flushed by close(). */
+    private MappedByteBuffer window = null;
+
+    private FrameArchive(File file, boolean writable, int channels) throws IOException
+    {
+        this.file = file;
+        this.writable = writable;
+        this.channel = writable
+            ? FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+            : FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        try {
+            if (channel.size() == 0) {
+                if (!writable) throw new IOException(file+" is empty");
+                this.channels = channels;
+                end = HEADER_SIZE;
+                writeHeader(0, 0);
+            }
+            else {
+                this.channels = readHeader();
+                if (writable && this.channels != channels) {
+                    throw new IOException(file+" has channels "+this.channels+", not "+channels);
+                }
+                if (writable) reopen();
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an archive for appending frames with the given channels,
+     * creating it if it does not exist.
+     */
+    public static FrameArchive append(File file, int channels) throws IOException
+    {
+        if ((channels & ~(DENSITY | VELOCITY)) != 0) {
+            throw new IllegalArgumentException("unknown channels: "+channels);
+        }
+        return new FrameArchive(file, true, channels);
+    }
+
+    /** Opens an existing archive for reading. */
+    public static FrameArchive read(File file) throws IOException
+    {
+        return new FrameArchive(file, false, 0);
+    }
+
+    /** Channels stored with every frame. */
+    public int getChannels() {
+        return channels;
+    }
+
+    /** Number of frames in the archive. */
+    public int frameCount() {
+        return frames;
+    }
+
+    /** Size in bytes of a frame of n particles. */
+    private long frameSize(int n)
+    {
+        int floats = 3;
+        if ((channels & DENSITY)  != 0) floats += 1;
+        if ((channels & VELOCITY) != 0) floats += 3;
+        return FRAME_HEADER_SIZE + 4L * floats * n;
+    }
+
+    /** Appends a frame at the end of the archive. */
+    public void append(Frame f) throws IOException
+    {
+        if (!writable) throw new IOException(file+" is open for reading");
+        long size = frameSize(f.n);
+        if (size > Integer.MAX_VALUE) throw new IOException("frame too large: "+size+" bytes");
+        // dropped frames may follow; keep a frame scan from reaching them
+        markEnd(end + size);
+        if (window != null) window.force();
+        window = channel.map(FileChannel.MapMode.READ_WRITE, end, size);
+        ByteBuffer b = window.order(ByteOrder.LITTLE_ENDIAN);
+
+        b.putInt(FRAME_MAGIC);
+        b.putInt(f.n);
+        b.putDouble(f.time);
+        putFloats(b, f.pos, 3 * f.n);
+        if ((channels & DENSITY)  != 0) putFloats(b, f.density, f.n);
+        if ((channels & VELOCITY) != 0) putFloats(b, f.vel, 3 * f.n);
+
+        if (frames == index.length) index = java.util.Arrays.copyOf(index, 2 * frames);
+        index[frames++] = end;
+        end += size;
+    }
+
+    /**
+     * Drops every frame after the first count, e.g. to resume a run from
+     * a Checkpoint taken at frame count - 1. Later frames are appended
+     * in their place.
+     */
+    public void truncate(int count) throws IOException
+    {
+        if (!writable) throw new IOException(file+" is open for reading");
+        if (count < 0 || count > frames) throw new IOException(file+" has "+frames+" frames, not "+count);
+        if (count < frames) end = index[count];
+        frames = count;
+        // so that a crash does not bring the dropped frames back
+        markEnd(end);
+        channel.force(true);
+    }
+
+    /**
+     * Reads frame k into f, growing f's arrays if needed. Channels that
+     * are not in the archive are left untouched.
+     */
+    public void readFrame(int k, Frame f) throws IOException
+    {
+        if (k < 0 || k >= frames) throw new IndexOutOfBoundsException("frame "+k+" of "+frames);
+        ByteBuffer h = readBytes(index[k], FRAME_HEADER_SIZE);
+        if (h.getInt() != FRAME_MAGIC) throw new IOException(file+": bad frame "+k);
+        int n = h.getInt();
+        double time = h.getDouble();
+
+        ByteBuffer b = readBytes(index[k] + FRAME_HEADER_SIZE, frameSize(n) - FRAME_HEADER_SIZE);
+        f.ensureCapacity(n);
+        f.n = n;
+        f.time = time;
+        getFloats(b, f.pos, 3 * n);
+        if ((channels & DENSITY)  != 0) getFloats(b, f.density, n);
+        if ((channels & VELOCITY) != 0) getFloats(b, f.vel, 3 * n);
+    }
+
+    /**
+     * Writes the frame index and closes the file. The archive can be
+     * reopened later to append more frames.
+     */
+    public void close() throws IOException
+    {
+        try {
+            if (writable) {
+                if (window != null) window.force();
+                window = null;
+                ByteBuffer b = ByteBuffer.allocate(8 * Math.min(frames, 1 << 16)).order(ByteOrder.LITTLE_ENDIAN);
+                long offset = end;
+                for (int k = 0; k < frames; ) {
+                    b.clear();
+                    for (; k < frames && b.hasRemaining(); k++) b.putLong(index[k]);
+                    b.flip();
+                    while (b.hasRemaining()) offset += channel.write(b, offset);
+                }
+                markEnd(offset);
+                writeHeader(end, frames);
+                channel.force(true);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Overwrites the 4 bytes at offset with zeros if the file extends
+    // past offset, so that a frame scan stops there. The file is never
+    // truncated: a mapped file cannot be on every platform.
+    private void markEnd(long offset) throws IOException
+    {
+        if (channel.size() <= offset) return;
+        ByteBuffer b = ByteBuffer.allocate(4);
+        while (b.hasRemaining()) channel.write(b, offset + b.position());
+    }
+
+    private static void putFloats(ByteBuffer b, float[] a, int count)
+    {
+        b.asFloatBuffer().put(a, 0, count);
+        b.position(b.position() + 4 * count);
+    }
+
+    private static void getFloats(ByteBuffer b, float[] a, int count)
+    {
+        b.asFloatBuffer().get(a, 0, count);
+        b.position(b.position() + 4 * count);
+    }
+
+    private ByteBuffer readBytes(long offset, long size) throws IOException
+    {
+        if (size > Integer.MAX_VALUE) throw new IOException(file+": frame too large");
+        ByteBuffer b = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        while (b.hasRemaining()) {
+            if (channel.read(b, offset + b.position()) < 0) throw new EOFException(file+": truncated");
+        }
+        b.flip();
+        return b;
+    }
+
+    // Marks an existing archive as open again and drops its index, so
+    // that a crash before close() falls back to scanning the frames
+    // instead of reading an index that appended frames overwrote.
+    private void reopen() throws IOException
+    {
+        writeHeader(0, 0);
+        markEnd(end);
+        channel.force(true);
+    }
+
+    private void writeHeader(long indexOffset, int count) throws IOException
+    {
+        ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        h.putInt(MAGIC).putInt(VERSION).putInt(channels).putInt(0);
+        h.putLong(indexOffset).putInt(count).putInt(0);
+        h.flip();
+        while (h.hasRemaining()) channel.write(h, h.position());
+    }
+
+    // Reads the header and the frame index, or rebuilds the index by
+    // scanning frames if the archive was not closed. Returns the channels.
+    private int readHeader() throws IOException
+    {
+        long size = channel.size();
+        if (size < HEADER_SIZE) throw new IOException(file+" is not a frame archive");
+        ByteBuffer h = readBytes(0, HEADER_SIZE);
+        if (h.getInt() != MAGIC) throw new IOException(file+" is not a frame archive");
+        int version = h.getInt();
+        if (version != VERSION) throw new IOException(file+": unsupported version "+version);
+        int ch = h.getInt();
+        h.getInt();
+        long indexOffset = h.getLong();
+        int count = h.getInt();
+
+        if (indexOffset != 0) {
+            index = new long[Math.max(16, count)];
+            ByteBuffer b = readBytes(indexOffset, 8L * count);
+            for (int k = 0; k < count; k++) index[k] = b.getLong();
+            frames = count;
+            end = indexOffset;
+        }
+        else {
+            int floats = 3 + ((ch & DENSITY) != 0 ? 1 : 0) + ((ch & VELOCITY) != 0 ? 3 : 0);
+            long offset = HEADER_SIZE;
+            while (offset + FRAME_HEADER_SIZE <= size) {
+                ByteBuffer fh = readBytes(offset, FRAME_HEADER_SIZE);
+                if (fh.getInt() != FRAME_MAGIC) break;
+                long next = offset + FRAME_HEADER_SIZE + 4L * floats * fh.getInt();
+                if (next > size) break;
+                if (frames == index.length) index = java.util.Arrays.copyOf(index, 2 * frames);
+                index[frames++] = offset;
+                offset = next;
+            }
+            end = offset;
+        }
+        return ch;
+    }
+
+    /**
+     * Extracts the frames of an archive into text frames in the format
+     * of FrameIO, e.g. for the Mitsuba scripts in ./frames/.
+     *
+     * Usage: java cs348c.particles.FrameArchive ARCHIVE OUTDIR [PREFIX]
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 2) {
+            System.err.println("Usage: FrameArchive ARCHIVE OUTDIR [PREFIX]");
+            System.exit(2);
+        }
+        File dir = new File(args[1]);
+        String prefix = (args.length > 2) ? args[2] : "frame";
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create "+dir);
+
+        FrameArchive archive = read(new File(args[0]));
+        try {
+            Frame f = new Frame();
+            for (int k = 0; k < archive.frameCount(); k++) {
+                archive.readFrame(k, f);
+                File out = new File(dir, prefix+"-"+Utils.getPaddedNumber(k, 5, "0")+".txt");
+                BufferedWriter w = new BufferedWriter(new FileWriter(out));
+                try {
+                    w.write(""+f.n+"\n");
+                    for (int i = 0; i < f.n; i++) {
+                        w.write(""+f.pos[3 * i]+" "+f.pos[3 * i + 1]+" "+f.pos[3 * i + 2]+"\n");
+                    }
+                } finally {
+                    w.close();
+                }
+            }
+            System.out.println("Extracted "+archive.frameCount()+" frames to "+dir);
+        } finally {
+            archive.close();
+        }
+    }
+}
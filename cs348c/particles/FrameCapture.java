@@ -0,0 +1,199 @@
+package cs348c.particles;
+
+import java.awt.image.*;
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.*;
+import javax.imageio.*;
+
+import com.jogamp.opengl.*;
+
+/**
+ * Captures the framebuffer to PNG files without stalling the render
+ * loop on the GPU or on PNG encoding.
+ *
+ * Each capture reads the framebuffer into one of a ring of pixel buffer
+ * objects (PBOs), which returns immediately. The pixels are copied out
+ * of a PBO PBO_COUNT - 1 frames later, when the transfer is long done,
+ * into a pooled frame buffer that is handed to background threads for
+ * PNG encoding and writing. When every frame buffer is waiting to be
+ * encoded, capture() blocks until one is free, so a slow disk slows the
+ * render loop down instead of dropping frames or filling memory.
+ *
+ * capture() and finish() must be called on the GL thread.
+ */
+public class FrameCapture
+{
+    /** Number of PBOs in the readback ring. */
+    private static final int PBO_COUNT = 3;
+
+    /** Number of frame buffers waiting for, or being, encoded. */
+    private static final int QUEUE_DEPTH = 8;
+
+    /** Pixels of one frame, bottom row first, as 0xAARRGGBB. */
+    private static class Frame {
+        int width, height;
+        int[] pixels = new int[0];
+        File file;
+    }
+
+    private final ExecutorService encoders;
+    private final BlockingQueue<Frame> free = new ArrayBlockingQueue<Frame>(QUEUE_DEPTH);
+
+    private final int[] pbo = new int[PBO_COUNT];
+
+    /** Target file of the readback pending in each PBO, or null. */
+    private final File[] pending = new File[PBO_COUNT];
+
+    /** Size of the PBOs, 0 before the first capture. */
+    private int width = 0, height = 0;
+
+    /** Next PBO to read into. */
+    private int next = 0;
+
+    /** First error of an encoder thread. */
+    private volatile Exception failure = null;
+
+    /** Creates a capture pipeline with the specified number of encoder threads. */
+    public FrameCapture(int encoderThreads)
+    {
+        encoders = Executors.newFixedThreadPool(encoderThreads, new ThreadFactory() {
+            private int count = 0;
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "png-encoder-" + (count++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        for (int k = 0; k < QUEUE_DEPTH; k++) free.add(new Frame());
+    }
+
+    /**
+     * Starts reading the current framebuffer for the specified PNG file,
+     * and queues the readback started PBO_COUNT - 1 captures ago for
+     * encoding.
+     */
+    public void capture(GL2 gl, File file) throws IOException
+    {
+        if (failure != null) throw new IOException("PNG encoding failed", failure);
+
+        int[] viewport = new int[4];
+        gl.glGetIntegerv(GL.GL_VIEWPORT, viewport, 0);
+        if (viewport[2] != width || viewport[3] != height) {
+            finish(gl);
+            allocate(gl, viewport[2], viewport[3]);
+        }
+
+        gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, pbo[next]);
+        gl.glPixelStorei(GL.GL_PACK_ALIGNMENT, 4);
+        gl.glReadPixels(0, 0, width, height, GL.GL_BGRA, GL2.GL_UNSIGNED_INT_8_8_8_8_REV, 0L);
+        gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, 0);
+        pending[next] = file;
+        next = (next + 1) % PBO_COUNT;
+
+        // the oldest readback is the one after the newest
+        collect(gl, next);
+    }
+
+    /**
+     * Queues all pending readbacks for encoding and releases the PBOs.
+     * The pipeline can be used again afterwards.
+     */
+    public void finish(GL2 gl) throws IOException
+    {
+        if (width == 0) return;
+        for (int k = 0; k < PBO_COUNT; k++) {
+            collect(gl, (next + k) % PBO_COUNT);
+        }
+        gl.glDeleteBuffers(PBO_COUNT, pbo, 0);
+        width = height = 0;
+        next = 0;
+    }
+
+    /**
+     * Waits until every queued frame is written and stops the encoder
+     * threads. Readbacks still pending in PBOs are dropped unless
+     * finish() was called first.
+     */
+    public void close() throws IOException
+    {
+        encoders.shutdown();
+        try {
+            encoders.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while writing PNG files");
+        }
+        if (failure != null) throw new IOException("PNG encoding failed", failure);
+    }
+
+    private void allocate(GL2 gl, int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+        gl.glGenBuffers(PBO_COUNT, pbo, 0);
+        for (int k = 0; k < PBO_COUNT; k++) {
+            gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, pbo[k]);
+            gl.glBufferData(GL2.GL_PIXEL_PACK_BUFFER, 4L * width * height, null, GL2.GL_STREAM_READ);
+        }
+        gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, 0);
+    }
+
+    // Copies the readback in PBO k, if any, into a free frame buffer and
+    // hands it to the encoders. Blocks while no frame buffer is free.
+    private void collect(GL2 gl, int k) throws IOException
+    {
+        if (pending[k] == null) return;
+
+        final Frame frame;
+        try {
+            frame = free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a free frame buffer");
+        }
+        frame.width = width;
+        frame.height = height;
+        frame.file = pending[k];
+        if (frame.pixels.length < width * height) frame.pixels = new int[width * height];
+        pending[k] = null;
+
+        gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, pbo[k]);
+        ByteBuffer mapped = gl.glMapBuffer(GL2.GL_PIXEL_PACK_BUFFER, GL2.GL_READ_ONLY);
+        if (mapped != null) {
+            mapped.order(ByteOrder.nativeOrder()).asIntBuffer().get(frame.pixels, 0, width * height);
+            gl.glUnmapBuffer(GL2.GL_PIXEL_PACK_BUFFER);
+        }
+        gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, 0);
+        if (mapped == null) {
+            free.add(frame);
+            throw new IOException("could not map pixel buffer for "+frame.file);
+        }
+
+        encoders.execute(new Runnable() {
+            public void run() {
+                try {
+                    encode(frame);
+                } catch (Exception e) {
+                    if (failure == null) failure = e;
+                } finally {
+                    free.add(frame);
+                }
+            }
+        });
+    }
+
+    private static void encode(Frame frame) throws IOException
+    {
+        int w = frame.width, h = frame.height;
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        int[] rows = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        // GL rows run bottom to top
+        for (int y = 0; y < h; y++) {
+            System.arraycopy(frame.pixels, (h - 1 - y) * w, rows, y * w, w);
+        }
+        if (!ImageIO.write(image, "png", frame.file)) {
+            throw new IOException("no PNG writer available");
+        }
+    }
+}
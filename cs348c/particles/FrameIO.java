@@ -0,0 +1,257 @@
+package cs348c.particles;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+
+/**
+ * Reads and writes particle frames in the text format used by the files
+ * in ./frames/. Has no GUI or OpenGL dependencies, so it can be used by
+ * both the interactive builder and the headless runner.
+ *
+ * Text file specification:
+ * The file's first line is an integer N denoting the number of particles in the system.
+ * N lines follow, each with 3 floating point numbers describing the points'
+ * x, y, and z coordinates.
+ *
+ * Text files are read whole and parsed in parallel chunks with a
+ * hand-rolled number parser; files up to 2 GB are supported. A
+ * FrameArchive can be loaded instead of a text file, in which case its
+ * last frame is used.
+ */
+public class FrameIO
+{
+    /** 10^k for the powers that are exact in a double. */
+    private static final double[] POW10 = new double[23];
+    static {
+        POW10[0] = 1;
+        for (int k = 1; k < POW10.length; k++) POW10[k] = 10 * POW10[k - 1];
+    }
+
+    /**
+     * Replaces all particles of PS with the particles of a frame file,
+     * either in the text format or a FrameArchive. The positions are
+     * parsed straight into a new ParticleStore without holding PS's
+     * lock, which is only taken by setParticles() to swap it in.
+     */
+    public static void loadFrame(ParticleSystem PS, File file) throws IOException
+    {
+        WorkerPool pool = PS.getPool();
+        ParticleStore loaded;
+        if (isArchive(file)) {
+            loaded = readArchiveFrame(file, pool);
+        } else {
+            loaded = parse(Files.readAllBytes(file.toPath()), pool, file);
+        }
+        PS.setParticles(loaded);
+    }
+
+    private static boolean isArchive(File file) throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] magic = new byte[4];
+            int read = 0;
+            while (read < 4) {
+                int r = in.read(magic, read, 4 - read);
+                if (r < 0) return false;
+                read += r;
+            }
+            return magic[0] == 'P' && magic[1] == 'B' && magic[2] == 'F' && magic[3] == 'A';
+        } finally {
+            in.close();
+        }
+    }
+
+    // Returns the particles of the last frame of an archive.
+    private static ParticleStore readArchiveFrame(File file, WorkerPool pool) throws IOException
+    {
+        FrameArchive archive = FrameArchive.read(file);
+        FrameArchive.Frame f = new FrameArchive.Frame();
+        try {
+            if (archive.frameCount() == 0) throw new IOException(file+" has no frames");
+            archive.readFrame(archive.frameCount() - 1, f);
+        } finally {
+            archive.close();
+        }
+        ParticleStore S = new ParticleStore(f.n);
+        for (int i = 0; i < f.n; i++) {
+            S.px[i] = f.pos[3 * i];
+            S.py[i] = f.pos[3 * i + 1];
+            S.pz[i] = f.pos[3 * i + 2];
+        }
+        S.initAll(f.n, pool);
+        return S;
+    }
+
+    /**
+     * Parses a text frame into the positions of a new ParticleStore.
+     * Tokens are assigned to the chunk they start in; a first pass
+     * counts the tokens of each chunk, so the second pass knows where
+     * each chunk's values go and can parse all chunks independently.
+     */
+    private static ParticleStore parse(final byte[] text, WorkerPool pool, File file) throws IOException
+    {
+        final int length = text.length;
+        int start = skipSpace(text, 0);
+        int end = skipToken(text, start);
+        if (start == end) throw new IOException(file+" is empty");
+        final int n;
+        try {
+            n = Integer.parseInt(new String(text, start, end - start, StandardCharsets.ISO_8859_1));
+        } catch (NumberFormatException e) {
+            throw new IOException(file+": bad particle count", e);
+        }
+        if (n < 0 || n > Integer.MAX_VALUE / 3) throw new IOException(file+": bad particle count "+n);
+
+        final int body = end;
+        final int chunks = pool.chunkCount(length - body);
+        final int[] tokens = new int[chunks + 1];
+        if (chunks > 1) {
+            pool.forEachChunk(length - body, new WorkerPool.ChunkTask() {
+                public void run(int chunk, int from, int to) {
+                    int count = 0;
+                    for (int k = body + from; k < body + to; k++) {
+                        if (tokenStart(text, k)) count++;
+                    }
+                    tokens[chunk + 1] = count;
+                }
+            });
+            for (int c = 0; c < chunks; c++) tokens[c + 1] += tokens[c];
+            if (tokens[chunks] < 3 * n) {
+                throw new IOException(file+": expected "+(3 * n)+" coordinates, found "+tokens[chunks]);
+            }
+        }
+
+        // a single chunk needs no counting pass: it starts at token 0
+        final ParticleStore S = new ParticleStore(n);
+        final double[] px = S.px, py = S.py, pz = S.pz;
+        final int coordinates = 3 * n;
+        final int[] parsed = new int[chunks];
+        final String[] error = new String[chunks];
+        pool.forEachChunk(length - body, new WorkerPool.ChunkTask() {
+            public void run(int chunk, int from, int to) {
+                int t = tokens[chunk];
+                for (int k = body + from; k < body + to && t < coordinates; k++) {
+                    if (!tokenStart(text, k)) continue;
+                    int e = skipToken(text, k);
+                    try {
+                        double v = parseDouble(text, k, e);
+                        int i = t / 3;
+                        switch (t - 3 * i) {
+                            case 0:  px[i] = v; break;
+                            case 1:  py[i] = v; break;
+                            default: pz[i] = v; break;
+                        }
+                    } catch (NumberFormatException ex) {
+                        if (error[chunk] == null) error[chunk] = ex.getMessage();
+                    }
+                    t++;
+                    k = e - 1;
+                }
+                parsed[chunk] = t - tokens[chunk];
+            }
+        });
+        if (chunks == 1 && parsed[0] < 3 * n) {
+            throw new IOException(file+": expected "+(3 * n)+" coordinates, found "+parsed[0]);
+        }
+        for (String e : error) {
+            if (e != null) throw new IOException(file+": bad coordinate: "+e);
+        }
+        S.initAll(n, pool);
+        return S;
+    }
+
+    private static boolean isSpace(byte c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '\f';
+    }
+
+    private static boolean tokenStart(byte[] b, int k) {
+        return !isSpace(b[k]) && (k == 0 || isSpace(b[k - 1]));
+    }
+
+    private static int skipSpace(byte[] b, int k) {
+        while (k < b.length && isSpace(b[k])) k++;
+        return k;
+    }
+
+    private static int skipToken(byte[] b, int k) {
+        while (k < b.length && !isSpace(b[k])) k++;
+        return k;
+    }
+
+    /**
+     * Parses the decimal number in b[from, to). Numbers whose digits fit
+     * in 53 bits and with small exponents, which covers the files written
+     * by writeFrame(), take an exact fast path; everything else goes
+     * through Double.parseDouble.
+     * @throws NumberFormatException if the number is malformed.
+     */
+    static double parseDouble(byte[] b, int from, int to)
+    {
+        int k = from;
+        boolean negative = false;
+        if (k < to && (b[k] == '-' || b[k] == '+')) negative = (b[k++] == '-');
+
+        long mantissa = 0;
+        int digits = 0, exponent = 0;
+        boolean any = false, truncated = false;
+        for (; k < to && b[k] >= '0' && b[k] <= '9'; k++) {
+            any = true;
+            if (mantissa == 0 && b[k] == '0') continue;
+            if (digits < 18) { mantissa = 10 * mantissa + (b[k] - '0'); digits++; }
+            else { exponent++; truncated = true; }
+        }
+        if (k < to && b[k] == '.') {
+            for (k++; k < to && b[k] >= '0' && b[k] <= '9'; k++) {
+                any = true;
+                if (mantissa == 0 && b[k] == '0') { exponent--; continue; }
+                if (digits < 18) { mantissa = 10 * mantissa + (b[k] - '0'); digits++; exponent--; }
+                else truncated = true;
+            }
+        }
+        if (any && k < to && (b[k] == 'e' || b[k] == 'E')) {
+            int e = k + 1;
+            boolean negExp = false;
+            if (e < to && (b[e] == '-' || b[e] == '+')) negExp = (b[e++] == '-');
+            int value = 0;
+            boolean expDigits = false;
+            for (; e < to && b[e] >= '0' && b[e] <= '9'; e++) {
+                expDigits = true;
+                if (value < 10000) value = 10 * value + (b[e] - '0');
+            }
+            if (expDigits) {
+                exponent += negExp ? -value : value;
+                k = e;
+            }
+        }
+
+        // exact when both the mantissa and 10^|exponent| are exact doubles
+        if (any && k == to && !truncated && mantissa < (1L << 53) && exponent >= -22 && exponent <= 22) {
+            double v = (exponent < 0) ? mantissa / POW10[-exponent] : mantissa * POW10[exponent];
+            return negative ? -v : v;
+        }
+        return Double.parseDouble(new String(b, from, to - from, StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Writes the current particle positions of PS to a frame file, in
+     * particle id order.
+     */
+    public static void writeFrame(ParticleSystem PS, File file) throws IOException
+    {
+        ParticleStore S = PS.S;
+        BufferedWriter output = new BufferedWriter(new FileWriter(file));
+        try {
+            int[] order = new int[S.n];
+            S.slotsById(order);
+            output.write(""+S.n+"\n");
+            for (int k = 0; k < S.n; k++) {
+                int i = order[k];
+                output.write(""+S.px[i]+" "+S.py[i]+" "+S.pz[i]+"\n");
+            }
+        } finally {
+            output.close();
+        }
+    }
+}
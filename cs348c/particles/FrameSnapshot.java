@@ -0,0 +1,89 @@
+package cs348c.particles;
+
+import java.util.*;
+
+/**
+ * Copy of the drawable state of a ParticleSystem at the end of a step:
+ * positions, densities and speeds in compact float arrays. Snapshots
+ * are filled by the simulation thread and read by the render thread
+ * through a SnapshotBuffer, so drawing never takes the solver's lock.
+ */
+public class FrameSnapshot
+{
+    private static final Force[] NO_FORCES = new Force[0];
+
+    /** Number of particles. */
+    int n = 0;
+
+    /** Interleaved x, y, z positions (3 * n entries). */
+    float[] pos = new float[0];
+
+    /** Density of each particle. */
+    float[] density = new float[0];
+
+    /** Squared speed of each particle. */
+    float[] speedSq = new float[0];
+
+    /** Highlight flag of each particle. */
+    boolean[] highlight = new boolean[0];
+
+    /** Forces active when the snapshot was taken. */
+    Force[] forces = NO_FORCES;
+
+    /** Simulation time of the snapshot. */
+    double time = 0;
+
+    /** Publication number, increasing with every published snapshot. */
+    volatile long sequence = 0;
+
+    /**
+     * True if the snapshot was published after a simulation frame, false
+     * if it was published while paused.
+     */
+    volatile boolean stepped = false;
+
+    /** Number of particles in the snapshot. */
+    public int size() {
+        return n;
+    }
+
+    /** Simulation time of the snapshot. */
+    public double getTime() {
+        return time;
+    }
+
+    /**
+     * Copies the current state of PS. Holds PS's lock for the duration
+     * of the copy only.
+     */
+    public void capture(ParticleSystem PS)
+    {
+        synchronized (PS) {
+            ParticleStore S = PS.S;
+            n = S.n;
+            if (density.length < n) {
+                int capacity = S.capacity();
+                pos       = new float[3 * capacity];
+                density   = new float[capacity];
+                speedSq   = new float[capacity];
+                highlight = new boolean[capacity];
+            }
+
+            for (int i = 0; i < n; i++) {
+                pos[3 * i]     = (float) S.px[i];
+                pos[3 * i + 1] = (float) S.py[i];
+                pos[3 * i + 2] = (float) S.pz[i];
+                density[i] = (float) S.density[i];
+                speedSq[i] = (float) (S.vx[i] * S.vx[i] + S.vy[i] * S.vy[i] + S.vz[i] * S.vz[i]);
+            }
+            // only particles with a view can be highlighted
+            Arrays.fill(highlight, 0, n, false);
+            for (Particle p : PS.P) {
+                if (p != null && p.isAlive() && p.getHighlight()) highlight[S.slot[p.id]] = true;
+            }
+
+            forces = PS.F.isEmpty() ? NO_FORCES : PS.F.toArray(new Force[PS.F.size()]);
+            time = PS.time;
+        }
+    }
+}
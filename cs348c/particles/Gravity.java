@@ -0,0 +1,49 @@
+package cs348c.particles;
+
+import com.jogamp.opengl.*;
+
+/**
+ * Uniform gravity: adds m * g to every particle, where g defaults to
+ * Constants.GRAVITY downwards along y. Added to every new
+ * ParticleSystem.
+ */
+public class Gravity implements Force, Checkpoint.Stateful
+{
+    /** Acceleration. */
+    private double gx = 0, gy = -Constants.GRAVITY, gz = 0;
+
+    public Gravity() {}
+
+    public Gravity(double gx, double gy, double gz) {
+        set(gx, gy, gz);
+    }
+
+    /** Sets the acceleration. */
+    public void set(double gx, double gy, double gz)
+    {
+        this.gx = gx;
+        this.gy = gy;
+        this.gz = gz;
+    }
+
+    public void applyForce(ParticleStore s, int from, int to, double time, double dt)
+    {
+        double gx = this.gx, gy = this.gy, gz = this.gz;
+        double[] m = s.m, fx = s.fx, fy = s.fy, fz = s.fz;
+        for (int i = from; i < to; i++) {
+            fx[i] += m[i] * gx;
+            fy[i] += m[i] * gy;
+            fz[i] += m[i] * gz;
+        }
+    }
+
+    public void display(GL2 gl) {}
+
+    public double[] getState() {
+        return new double[] { gx, gy, gz };
+    }
+
+    public void setState(double[] state) {
+        set(state[0], state[1], state[2]);
+    }
+}
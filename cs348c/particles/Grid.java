@@ -1,73 +1,315 @@
 package cs348c.particles;
 
 import java.util.*;
-import java.util.HashSet;
-import javax.vecmath.*;
 
-//This class helps accelerate neighbor finding
+//This class helps accelerate neighbor finding.
+//Particles are bucketed into cells of width H with a counting sort:
+//cellStart[c]..cellStart[c+1] indexes the residents of cell c in sorted.
+//Only occupied cells exist. They are found through an open-addressed
+//hash table keyed by the packed integer cell coordinates, so memory is
+//proportional to the occupied cells and the domain is unbounded (up to
+//2^20 cells from the origin on each axis). Cells are numbered in order
+//of first appearance, and each cell keeps the numbers of its 27
+//neighbor cells, so queries never touch the hash table.
+//Assigning cell numbers runs serially; everything else runs in parallel.
 public class Grid
 {
-	private HashMap<Vector3d, Set<Particle>> grid = new HashMap<Vector3d, Set<Particle>>();
+    /** Cells per unit length; cells are H wide. */
+    private static final double CELLS_PER_UNIT = 1 / Constants.H;
 
-	public Grid() {
-		grid = new HashMap<Vector3d, Set<Particle>>();
-	}
+    /** Bits of each packed cell coordinate, and the offset that makes them non-negative. */
+    private static final int COORD_BITS = 21;
+    private static final int BIAS = 1 << (COORD_BITS - 1);
+    private static final long COORD_MASK = (1L << COORD_BITS) - 1;
+
+    /** Hash table slot without a cell; packed keys are never negative. */
+    private static final long EMPTY = -1;
+
+    /** Hash table of occupied cells: packed key and cell number per slot. */
+    private long[] tableKeys = new long[0];
+    private int[] tableCells = new int[0];
+
+    /** Number of occupied cells. */
+    private int cells = 0;
+
+    /** Packed coordinates of each cell. */
+    private long[] cellKey = new long[0];
+
+    /** Offsets of each cell's residents in sorted (cells + 1 entries). */
+    private int[] cellStart = new int[1];
+
+    /** Numbers of the 27 cells around each cell, -1 where unoccupied. */
+    private int[] cellNeighbors = new int[0];
+
+    /** Packed cell coordinates of each particle. */
+    private long[] keyOf = new long[0];
+
+    /** Cell number of each particle. */
+    private int[] cellOf = new int[0];
+
+    /** Particle indices ordered by cell. */
+    private int[] sorted = new int[0];
+
+    /** Number of particles in the grid. */
+    private int n = 0;
+
+    /** Largest number of residents in any one cell. */
+    private int maxOccupancy = 0;
+
+    /**
+     * Per-chunk cell counts of a parallel build, turned into per-chunk
+     * insertion cursors by the prefix sum.
+     */
+    private int[][] chunkCounts = new int[0][];
+
+	public Grid() {}
 
 	public void clearGrid() {
-		grid.clear();
+        cells = 0;
+        n = 0;
+        maxOccupancy = 0;
 	}
 
-	public void addP2Grid(Particle p) {
-        int x = (int) (.999999999999 * p.x_star.x * Constants.GRID_SIZE);
-        int y = (int) (.999999999999 * p.x_star.y * Constants.GRID_SIZE);
-        int z = (int) (.999999999999 * p.x_star.z * Constants.GRID_SIZE);
+    // absolute cell coordinate of position x
+    static int cell(double x) {
+        return (int) Math.floor(x * CELLS_PER_UNIT);
+    }
 
-        Vector3d cell = new Vector3d(x, y, z);
-        if (!grid.containsKey(cell)) {
-            Set<Particle> residents = new HashSet<Particle>();
-            residents.add(p);
-            grid.put(cell, residents);
-        } else {
-            Set<Particle> residents = grid.get(cell);
-            residents.add(p);
-            grid.put(cell, residents);
+    // packed key of the cell containing (x, y, z)
+    private static long key(double x, double y, double z) {
+        return pack(cell(x), cell(y), cell(z));
+    }
+
+    private static long pack(long a, long b, long c) {
+        a += BIAS; b += BIAS; c += BIAS;
+        if (((a | b | c) & ~COORD_MASK) != 0) {
+            throw new IllegalStateException("particle outside the grid's range of "+BIAS+
+                                            " cells from the origin");
+        }
+        return (a << (2 * COORD_BITS)) | (b << COORD_BITS) | c;
+    }
+
+    // table slot to start probing for key
+    private int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (tableKeys.length - 1);
+    }
+
+    // number of the cell with the specified key, or -1
+    private int find(long key) {
+        int mask = tableKeys.length - 1;
+        for (int slot = hash(key); ; slot = (slot + 1) & mask) {
+            long k = tableKeys[slot];
+            if (k == key) return tableCells[slot];
+            if (k == EMPTY) return -1;
+        }
+    }
+
+    // number of the cell with the specified key, added if new
+    private int findOrAdd(long key) {
+        int mask = tableKeys.length - 1;
+        int slot = hash(key);
+        for (; ; slot = (slot + 1) & mask) {
+            long k = tableKeys[slot];
+            if (k == key) return tableCells[slot];
+            if (k == EMPTY) break;
+        }
+        if (cellKey.length <= cells) cellKey = Arrays.copyOf(cellKey, Math.max(64, 2 * cells));
+        cellKey[cells] = key;
+        tableKeys[slot] = key;
+        tableCells[slot] = cells;
+        if (2 * (++cells) > tableKeys.length) rehash(2 * tableKeys.length);
+        return cells - 1;
+    }
+
+    // Empties the table and makes room for about expectedCells cells at
+    // a load factor of at most 1/2.
+    private void clearTable(int expectedCells) {
+        int capacity = Math.max(tableKeys.length, 64);
+        while (capacity < 2 * expectedCells) capacity *= 2;
+        if (capacity != tableKeys.length) {
+            tableKeys = new long[capacity];
+            tableCells = new int[capacity];
         }
+        Arrays.fill(tableKeys, EMPTY);
     }
 
+    private void rehash(int capacity) {
+        tableKeys = new long[capacity];
+        tableCells = new int[capacity];
+        Arrays.fill(tableKeys, EMPTY);
+        int mask = capacity - 1;
+        for (int c = 0; c < cells; c++) {
+            int slot = hash(cellKey[c]);
+            while (tableKeys[slot] != EMPTY) slot = (slot + 1) & mask;
+            tableKeys[slot] = cellKey[c];
+            tableCells[slot] = c;
+        }
+    }
 
-    private double distance(Particle p, Particle q) {
-        Vector3d diff = VMath.subtract(p.x_star, q.x_star);
-        return diff.length();
+    /**
+     * Buckets the predicted positions of all particles in s. Two linear
+     * passes: count residents per cell, then scatter particle indices
+     * into their cell's range after a prefix sum over the counts.
+     */
+    public void build(ParticleStore s) {
+        build(s, null);
     }
 
-    private Set<Particle> getCellNeighbors(Vector3d cell, Particle p) {
-        Set<Particle> Ni = new HashSet<Particle>();
-        for (Particle q : grid.get(cell)) {
-            if (p != q && distance(p, q) < Constants.H) {
-                Ni.add(q);
+    /**
+     * Parallel version of build(ParticleStore). The packed cell keys
+     * are computed in parallel and then numbered serially, which is
+     * cheap as consecutive particles mostly share a cell (see
+     * SpatialOrder). Each chunk of particles counts its residents per
+     * cell, the prefix sum runs over (cell, chunk) pairs, and each chunk
+     * then scatters into its own slice of every cell. Residents stay in
+     * index order within a cell, so the result is identical to the
+     * serial build.
+     */
+    public void build(final ParticleStore s, WorkerPool pool) {
+        n = s.n;
+        if (cellOf.length < n) {
+            keyOf  = new long[s.capacity()];
+            cellOf = new int[s.capacity()];
+            sorted = new int[s.capacity()];
+        }
+
+        WorkerPool.ChunkTask keys = new WorkerPool.ChunkTask() {
+            public void run(int chunk, int from, int to) {
+                for (int i = from; i < to; i++) {
+                    keyOf[i] = key(s.sx[i], s.sy[i], s.sz[i]);
+                }
+            }
+        };
+        if (pool == null) keys.run(0, 0, n); else pool.forEachChunk(n, keys);
+
+        // a cell holds a few particles, so the last step's count is a good guess
+        clearTable(cells);
+        cells = 0;
+        long lastKey = EMPTY;
+        int lastCell = -1;
+        for (int i = 0; i < n; i++) {
+            long k = keyOf[i];
+            if (k != lastKey) {
+                lastKey = k;
+                lastCell = findOrAdd(k);
+            }
+            cellOf[i] = lastCell;
+        }
+        if (cellStart.length < cells + 1) cellStart = new int[Math.max(cellKey.length, cells) + 1];
+
+        int chunks = (pool == null) ? 1 : pool.chunkCount(n);
+        if (chunkCounts.length < chunks) chunkCounts = Arrays.copyOf(chunkCounts, chunks);
+        for (int c = 0; c < chunks; c++) {
+            if (chunkCounts[c] == null || chunkCounts[c].length < cells) chunkCounts[c] = new int[cellStart.length];
+        }
+
+        WorkerPool.ChunkTask count = new WorkerPool.ChunkTask() {
+            public void run(int chunk, int from, int to) {
+                int[] counts = chunkCounts[chunk];
+                Arrays.fill(counts, 0, cells, 0);
+                for (int i = from; i < to; i++) {
+                    counts[cellOf[i]]++;
+                }
+            }
+        };
+        if (pool == null) count.run(0, 0, n); else pool.forEachChunk(n, count);
+
+        maxOccupancy = 0;
+        int total = 0;
+        for (int c = 0; c < cells; c++) {
+            cellStart[c] = total;
+            for (int k = 0; k < chunks; k++) {
+                int residents = chunkCounts[k][c];
+                chunkCounts[k][c] = total;
+                total += residents;
             }
+            maxOccupancy = Math.max(maxOccupancy, total - cellStart[c]);
         }
-        
-        return Ni;
-    } 
-
-    public Set<Particle> getNeighbors(Particle p) {
-        int x = (int) (.999999999999 * p.x_star.x * Constants.GRID_SIZE);
-        int y = (int) (.999999999999 * p.x_star.y * Constants.GRID_SIZE);
-        int z = (int) (.999999999999 * p.x_star.z * Constants.GRID_SIZE);
-        Set<Particle> Ni = new HashSet<Particle>();
-
-        for (int i = Math.max(0, x - 1); i < Math.min(Constants.GRID_SIZE, x + 2); i++) {
-            for (int j = Math.max(0, y - 1); j < Math.min(Constants.GRID_SIZE, y + 2); j++) {
-                for (int k = Math.max(0, z - 1); k < Math.min(Constants.GRID_SIZE, z + 2); k++) {
-                    Vector3d curr = new Vector3d(i, j, k);
-                    if (grid.containsKey(curr)) {
-                        Ni.addAll(getCellNeighbors(curr, p));
-                    }
+        cellStart[cells] = total;
+
+        WorkerPool.ChunkTask scatter = new WorkerPool.ChunkTask() {
+            public void run(int chunk, int from, int to) {
+                int[] cursor = chunkCounts[chunk];
+                for (int i = from; i < to; i++) {
+                    sorted[cursor[cellOf[i]]++] = i;
+                }
+            }
+        };
+        if (pool == null) scatter.run(0, 0, n); else pool.forEachChunk(n, scatter);
+
+        // the table is only read from here on
+        if (cellNeighbors.length < 27 * cells) cellNeighbors = new int[27 * cellStart.length];
+        if (pool == null) {
+            Arrays.fill(cellNeighbors, 0, 27 * cells, -1);
+            linkNeighbors(0, cells);
+        } else {
+            pool.parallelFor(cells, (from, to) -> Arrays.fill(cellNeighbors, 27 * from, 27 * to, -1));
+            pool.parallelFor(cells, (from, to) -> linkNeighbors(from, to));
+        }
+    }
+
+    // Links each of the cells [from, to) to its 27 neighbors. Only the
+    // first 13 directions are looked up: cell c' found in direction d of
+    // c has c in the opposite direction 26 - d, which no other cell
+    // writes. Entries of unoccupied cells keep the -1 they were filled
+    // with before.
+    private void linkNeighbors(int from, int to) {
+        for (int c = from; c < to; c++) {
+            long k = cellKey[c];
+            long x = (k >>> (2 * COORD_BITS)) - BIAS;
+            long y = ((k >>> COORD_BITS) & COORD_MASK) - BIAS;
+            long z = (k & COORD_MASK) - BIAS;
+            cellNeighbors[27 * c + 13] = c;
+            for (int d = 0; d < 13; d++) {
+                long a = x + d / 9 - 1, b = y + d / 3 % 3 - 1, e = z + d % 3 - 1;
+                int other = inRange(a, b, e) ? find(pack(a, b, e)) : -1;
+                cellNeighbors[27 * c + d] = other;
+                if (other >= 0) cellNeighbors[27 * other + 26 - d] = c;
+            }
+        }
+    }
+
+    private static boolean inRange(long a, long b, long c) {
+        return (((a + BIAS) | (b + BIAS) | (c + BIAS)) & ~COORD_MASK) == 0;
+    }
+
+    /** Number of occupied cells. */
+    public int cellCount() {
+        return cells;
+    }
+
+    /** Upper bound on the neighbor count of any particle in the grid. */
+    public int maxNeighbors() {
+        return 27 * maxOccupancy;
+    }
+
+    /**
+     * Writes the indices of the particles within H of particle i into
+     * Ni starting at offset; Ni must hold at least maxNeighbors()
+     * entries past offset. i must have been bucketed by the last build.
+     * @return Number of neighbors written.
+     */
+    public int getNeighbors(ParticleStore s, int i, int[] Ni, int offset) {
+        double xi = s.sx[i], yi = s.sy[i], zi = s.sz[i];
+        double h2 = Constants.H * Constants.H;
+        int count = offset;
+
+        int d = 27 * cellOf[i];
+        for (int end = d + 27; d < end; d++) {
+            int cell = cellNeighbors[d];
+            if (cell < 0) continue;
+            for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                int j = sorted[k];
+                double dx = xi - s.sx[j];
+                double dy = yi - s.sy[j];
+                double dz = zi - s.sz[j];
+                if (i != j && dx * dx + dy * dy + dz * dz < h2) {
+                    Ni[count++] = j;
                 }
             }
         }
 
-        return Ni;
+        return count - offset;
     }
-}
\ No newline at end of file
+}
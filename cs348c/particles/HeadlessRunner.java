@@ -0,0 +1,369 @@
+package cs348c.particles;
+
+import java.io.*;
+
+/**
+ * Command-line entry point that steps a ParticleSystem without any
+ * window, OpenGL context or AWT, as fast as the CPU allows, and writes
+ * frames to disk. Only vecmath needs to be on the classpath.
+ *
+ * Usage:
+ *   java cs348c.particles.HeadlessRunner -scene frames/dam-break.txt
+ *        [-steps 500] [-dt 0.01] [-every 1] [-out frames] [-prefix bake]
+ *        [-threads 1] [-kernelError 1e-4] [-format archive] [-channels density,velocity]
+ *        [-adaptive] [-minDt 1e-4] [-maxDt 0.01] [-cfl 0.4]
+ *        [-tolerance 0.01] [-minIterations 1] [-maxIterations 4] [-float]
+ *        [-reorder 20] [-profile steps.csv] [-checkpoint 100] [-resume frames/bake-00300.pbfc]
+ *        [-wind 2,0,0,0.5] [-attractor 0.5,0.5,0.5,20,0.3]
+ *        [-sphere 0.5,0.2,0.5,0.1] [-box 0.5,0.1,0.5,0.1,0.1,0.1] [-plane 0,0.1,0,0,1,0]
+ *        [-sdf obstacle.pbfs] [-emitter 0.1,0.8,0.5,2,0,0,0.05] [-sink -Infinity,-Infinity,-Infinity,Infinity,0.05,Infinity]
+ *
+ * Each of the "-steps" steps advances the simulation by "-dt". With
+ * -adaptive, a step is a frame split into substeps by a TimeStepper,
+ * sized from the fastest particle and clamped to [-minDt, -maxDt]
+ * (-maxDt defaults to -dt).
+ *
+ * A positive -tolerance ends the density constraint iterations of a
+ * step once no particle is compressed by more than that fraction of the
+ * rest density, after at least -minIterations and at most
+ * -maxIterations (default Constants.DENSITY_IT) iterations; without it
+ * every step runs -maxIterations iterations. -float runs the iterations
+ * in single precision with SIMD (VectorSolver), which needs
+ * "--add-modules jdk.incubator.vector".
+ *
+ * Every "-reorder" steps (0 never) the particles are reordered in
+ * memory along a Morton curve for cache locality; exported frames list
+ * the particles in the same order regardless.
+ *
+ * -profile times the phases of every step (see StepProfiler) and writes
+ * them, with the step's counters, to the file: one JSON object per line
+ * if its name ends in ".json", CSV otherwise. A summary of the last
+ * steps is printed at the end.
+ *
+ * Every "-checkpoint" steps the complete simulation state is written to
+ * out/prefix-SSSSS.pbfc (see Checkpoint) on a background thread. -resume
+ * continues such a run from a checkpoint instead of loading -scene, up
+ * to the same -steps; run with the same solver options, it writes the
+ * same frames as the uninterrupted run would have. An archive is cut
+ * back to the frames written before the checkpoint.
+ *
+ * Besides gravity, -wind wx,wy,wz,drag adds a Wind and -attractor
+ * x,y,z,strength,radius a radial Attractor; each may be given several
+ * times. Pass the same forces with -resume.
+ *
+ * -sphere x,y,z,radius, -box x,y,z,hx,hy,hz (center and half extents),
+ * -plane x,y,z,nx,ny,nz (a point and the normal out of the solid) and
+ * -sdf FILE (see SdfObstacle) add obstacles; the first three move when
+ * followed by a velocity vx,vy,vz. Pass the same obstacles with -resume.
+ *
+ * -emitter x,y,z,vx,vy,vz,radius adds an Emitter, a disc nozzle that
+ * pours fluid with that velocity, optionally followed by the largest
+ * number of particles to emit. -sink minx,miny,minz,maxx,maxy,maxz
+ * adds a Sink that removes the particles ending a step in that box;
+ * bounds may be -Infinity or Infinity. Pass the same emitters and sinks
+ * with -resume.
+ *
+ * Frames are written every "-every" steps (0 disables export). With
+ * "-format archive" (the default) they are appended to the binary
+ * FrameArchive out/prefix.pbfa on a background thread, with the listed
+ * channels ("none" for positions only); with "-format txt" each frame
+ * is written in the text format of FrameIO as out/prefix-NNNNN.txt. A positive
+ * -kernelError evaluates the kernels from lookup tables with that error
+ * bound, relative to each kernel's peak.
+ */
+public class HeadlessRunner
+{
+    /** Same default step as ParticleSystemBuilder.DT. */
+    public static final double DEFAULT_DT = 0.01;
+
+    /** Steps covered by the printed profile summary. */
+    static final int PROFILE_WINDOW = 100;
+
+    String scene      = null;
+    int    steps      = 500;
+    double dt         = DEFAULT_DT;
+    int    every      = 1;
+    String outDir     = "frames";
+    String prefix     = "bake";
+    int    threads    = Integer.getInteger("fluids.threads", 1);
+    double kernelError = 0;
+    boolean adaptive  = false;
+    double minDt      = 1e-4;
+    double maxDt      = 0;
+    double cfl        = 0.4;
+    double tolerance  = 0;
+    int    minIterations = 1;
+    int    maxIterations = Constants.DENSITY_IT;
+    boolean singlePrecision = false;
+    int    reorder    = -1;
+    String profile    = null;
+    int    checkpoint = 0;
+    String resume     = null;
+    java.util.List<Force> forces = new java.util.ArrayList<Force>();
+    java.util.List<Obstacle> obstacles = new java.util.ArrayList<Obstacle>();
+    java.util.List<Emitter> emitters = new java.util.ArrayList<Emitter>();
+    java.util.List<Sink> sinks = new java.util.ArrayList<Sink>();
+
+    /** Distance field files of -sdf, read by run(). */
+    java.util.List<String> sdfFiles = new java.util.ArrayList<String>();
+    String format     = "archive";
+    int    channels   = FrameArchive.DENSITY | FrameArchive.VELOCITY;
+
+    /** Open while running with "-format archive". */
+    private AsyncArchiveWriter archive = null;
+
+    /** Open while running with "-checkpoint". */
+    private AsyncCheckpointWriter checkpoints = null;
+
+    /** Parses command-line options. */
+    HeadlessRunner(String[] args)
+    {
+        for (int k = 0; k < args.length; k++) {
+            String opt = args[k];
+            if (opt.equals("-adaptive")) {
+                adaptive = true;
+                continue;
+            }
+            if (opt.equals("-float")) {
+                singlePrecision = true;
+                continue;
+            }
+            if (k + 1 >= args.length) throw new IllegalArgumentException("missing value for "+opt);
+            String val = args[++k];
+
+            if      (opt.equals("-scene"))   scene   = val;
+            else if (opt.equals("-steps"))   steps   = Integer.parseInt(val);
+            else if (opt.equals("-dt"))      dt      = Double.parseDouble(val);
+            else if (opt.equals("-every"))   every   = Integer.parseInt(val);
+            else if (opt.equals("-out"))     outDir  = val;
+            else if (opt.equals("-prefix"))  prefix  = val;
+            else if (opt.equals("-threads")) threads = Integer.parseInt(val);
+            else if (opt.equals("-kernelError")) kernelError = Double.parseDouble(val);
+            else if (opt.equals("-minDt"))    minDt    = Double.parseDouble(val);
+            else if (opt.equals("-maxDt"))    maxDt    = Double.parseDouble(val);
+            else if (opt.equals("-cfl"))      cfl      = Double.parseDouble(val);
+            else if (opt.equals("-tolerance"))     tolerance     = Double.parseDouble(val);
+            else if (opt.equals("-minIterations")) minIterations = Integer.parseInt(val);
+            else if (opt.equals("-maxIterations")) maxIterations = Integer.parseInt(val);
+            else if (opt.equals("-reorder"))       reorder       = Integer.parseInt(val);
+            else if (opt.equals("-profile"))       profile       = val;
+            else if (opt.equals("-checkpoint"))    checkpoint    = Integer.parseInt(val);
+            else if (opt.equals("-resume"))        resume        = val;
+            else if (opt.equals("-wind")) {
+                double[] w = parseNumbers(opt, val, 4);
+                forces.add(new Wind(w[0], w[1], w[2], w[3]));
+            }
+            else if (opt.equals("-attractor")) {
+                double[] a = parseNumbers(opt, val, 5);
+                forces.add(new Attractor(a[0], a[1], a[2], a[3], a[4]));
+            }
+            else if (opt.equals("-sphere")) {
+                double[] a = parseNumbers(opt, val, 4, 7);
+                obstacles.add(moving(new SphereObstacle(a[0], a[1], a[2], a[3]), a, 4));
+            }
+            else if (opt.equals("-box")) {
+                double[] a = parseNumbers(opt, val, 6, 9);
+                obstacles.add(moving(new BoxObstacle(a[0], a[1], a[2], a[3], a[4], a[5]), a, 6));
+            }
+            else if (opt.equals("-plane")) {
+                double[] a = parseNumbers(opt, val, 6, 9);
+                obstacles.add(moving(new PlaneObstacle(a[0], a[1], a[2], a[3], a[4], a[5]), a, 6));
+            }
+            else if (opt.equals("-sdf")) {
+                sdfFiles.add(val);
+            }
+            else if (opt.equals("-emitter")) {
+                double[] a = parseNumbers(opt, val, 7, 8);
+                Emitter e = new Emitter(a[0], a[1], a[2], a[3], a[4], a[5], a[6]);
+                if (a.length > 7) e.setLimit((long) a[7]);
+                emitters.add(e);
+            }
+            else if (opt.equals("-sink")) {
+                double[] a = parseNumbers(opt, val, 6);
+                sinks.add(new Sink(a[0], a[1], a[2], a[3], a[4], a[5]));
+            }
+            else if (opt.equals("-format"))   format   = val;
+            else if (opt.equals("-channels")) channels = parseChannels(val);
+            else throw new IllegalArgumentException("unknown option "+opt);
+        }
+        if (scene == null && resume == null) throw new IllegalArgumentException("-scene or -resume is required");
+        if (!format.equals("archive") && !format.equals("txt")) {
+            throw new IllegalArgumentException("unknown format "+format);
+        }
+    }
+
+    private static double[] parseNumbers(String opt, String val, int count)
+    {
+        return parseNumbers(opt, val, count, count);
+    }
+
+    // Parses count or alternatively alt comma-separated numbers.
+    private static double[] parseNumbers(String opt, String val, int count, int alt)
+    {
+        String[] parts = val.split(",");
+        if (parts.length != count && parts.length != alt) {
+            throw new IllegalArgumentException(opt+" needs "+count+((alt != count) ? " or "+alt : "")+" numbers: "+val);
+        }
+        double[] a = new double[parts.length];
+        for (int k = 0; k < parts.length; k++) a[k] = Double.parseDouble(parts[k]);
+        return a;
+    }
+
+    // Sets the velocity of o to a[k], a[k+1], a[k+2] if present.
+    private static Obstacle moving(Obstacle o, double[] a, int k)
+    {
+        if (a.length > k) o.setVelocity(a[k], a[k + 1], a[k + 2]);
+        return o;
+    }
+
+    private static int parseChannels(String val)
+    {
+        int channels = 0;
+        if (val.equals("none")) return channels;
+        for (String name : val.split(",")) {
+            if      (name.equals("density"))  channels |= FrameArchive.DENSITY;
+            else if (name.equals("velocity")) channels |= FrameArchive.VELOCITY;
+            else throw new IllegalArgumentException("unknown channel "+name);
+        }
+        return channels;
+    }
+
+    /** Loads the scene, runs all steps and exports frames. */
+    void run() throws IOException
+    {
+        ParticleSystem PS = new ParticleSystem();
+        PS.setThreads(threads);
+        if (singlePrecision) PS.setSinglePrecision(true);
+        if (reorder >= 0) PS.setReorderInterval(reorder);
+        PS.setSolverIterations(Math.min(minIterations, maxIterations), maxIterations, tolerance);
+        for (Force f : forces) PS.addForce(f);
+        for (String file : sdfFiles) obstacles.add(SdfObstacle.read(new File(file)));
+        for (Obstacle o : obstacles) PS.addObstacle(o);
+        for (Emitter e : emitters) PS.addEmitter(e);
+        for (Sink s : sinks) PS.addSink(s);
+        if (kernelError > 0) PS.setKernel(Kernel.tabulated(Constants.H, kernelError));
+        int first = 1;
+        if (resume != null) {
+            Checkpoint c = Checkpoint.read(new File(resume));
+            PS.loadCheckpoint(c);
+            first = (int) c.step + 1;
+            System.out.println("Resumed "+PS.S.size()+" particles at step "+c.step+" (t="+PS.time+") from "+resume);
+        } else {
+            FrameIO.loadFrame(PS, new File(scene));
+            System.out.println("Loaded "+PS.S.size()+" particles from "+scene);
+        }
+
+        File dir = new File(outDir);
+        if ((every > 0 || checkpoint > 0) && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create output directory "+dir);
+        }
+
+        // frames of steps 0, every, 2 * every, ... before first
+        int  nFrames = (every > 0) ? (first - 1) / every + 1 : 0;
+        int  resumedFrames = (resume != null) ? nFrames : 0;
+        if (every > 0 && format.equals("archive")) {
+            archive = new AsyncArchiveWriter(new File(dir, prefix+FrameArchive.EXTENSION), channels,
+                                             (resume != null) ? nFrames : -1);
+        }
+        if (checkpoint > 0) checkpoints = new AsyncCheckpointWriter();
+
+        StepProfiler profiler = null;
+        if (profile != null) {
+            profiler = new StepProfiler(PROFILE_WINDOW);
+            profiler.setOutput(new File(profile));
+            PS.setProfiler(profiler);
+        }
+
+        TimeStepper stepper = new TimeStepper(dt);
+        stepper.setAdaptive(adaptive);
+        stepper.setBounds(minDt, (maxDt > 0) ? maxDt : dt);
+        stepper.setCourant(cfl);
+
+        long substeps = 0;
+        double smallest = Double.MAX_VALUE;
+        int mostSubsteps = 0;
+        SolverStats stats = new SolverStats();
+        long iterations = 0;
+        int converged = 0;
+        double worstError = 0, sumError = 0;
+        long timeNS  = -System.nanoTime();
+        try {
+            if (every > 0 && resume == null) writeFrame(PS, dir, 0);
+            for (int step = first; step <= steps; step++) {
+                int n = stepper.advanceFrame(PS);
+                substeps += n;
+                mostSubsteps = Math.max(mostSubsteps, n);
+                smallest = Math.min(smallest, stepper.getLastMinDt());
+                PS.getSolverStats(stats);
+                iterations += stats.iterations;
+                if (stats.converged) converged++;
+                worstError = Math.max(worstError, stats.maxError);
+                sumError += stats.avgError;
+                if (every > 0 && step % every == 0) writeFrame(PS, dir, nFrames++);
+                if (checkpoint > 0 && step % checkpoint == 0) {
+                    String number = Utils.getPaddedNumber(step, 5, "0");
+                    checkpoints.submit(PS, step, new File(dir, prefix+"-"+number+Checkpoint.EXTENSION));
+                }
+            }
+        } finally {
+            if (archive != null) archive.close();
+            if (checkpoints != null) checkpoints.close();
+            if (profiler != null) profiler.close();
+        }
+        timeNS += System.nanoTime();
+
+        double seconds = timeNS * 1e-9;
+        int ran = Math.max(0, steps - first + 1);
+        System.out.println("Ran "+ran+" steps (t="+PS.time+") in "+seconds+"s: "+
+                           (ran / seconds)+" steps/s, "+(nFrames - resumedFrames)+" frames written");
+        if (adaptive) {
+            System.out.println("Substeps: "+substeps+" total, "+(substeps / (double) Math.max(1, ran))+
+                               " per step on average, at most "+mostSubsteps+"; smallest dt "+smallest);
+        }
+        // sampled from the last substep of each step
+        int sampled = Math.max(1, ran);
+        System.out.println("Solver: "+(iterations / (double) sampled)+" iterations per step on average"+
+                           ((tolerance > 0) ? ", "+converged+" of "+ran+" steps converged" : "")+
+                           "; density error "+(sumError / sampled)+" average, "+worstError+" max");
+        if (!emitters.isEmpty() || !sinks.isEmpty()) {
+            long emitted = 0;
+            for (Emitter e : emitters) emitted += e.getEmitted();
+            System.out.println("Particles: "+PS.S.size()+" at the end, "+emitted+" emitted in total");
+        }
+        if (profiler != null) System.out.println("Profile: "+profiler.summary());
+    }
+
+    private void writeFrame(ParticleSystem PS, File dir, int frame) throws IOException
+    {
+        if (archive != null) {
+            archive.submit(PS);
+            return;
+        }
+        String number = Utils.getPaddedNumber(frame, 5, "0");
+        FrameIO.writeFrame(PS, new File(dir, prefix+"-"+number+".txt"));
+    }
+
+    public static void main(String[] args)
+    {
+        try {
+            new HeadlessRunner(args).run();
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: "+e.getMessage());
+            System.err.println("Usage: HeadlessRunner -scene FILE [-steps N] [-dt DT] [-every K]"+
+                               " [-out DIR] [-prefix NAME] [-threads T] [-kernelError E]"+
+                               " [-format archive|txt] [-channels density,velocity|none]"+
+                               " [-adaptive] [-minDt DT] [-maxDt DT] [-cfl C]"+
+                               " [-tolerance E] [-minIterations N] [-maxIterations N] [-float]"+
+                               " [-reorder N] [-profile FILE.csv|FILE.json] [-checkpoint K] [-resume FILE]"+
+                               " [-wind WX,WY,WZ,DRAG] [-attractor X,Y,Z,STRENGTH,RADIUS]"+
+                               " [-sphere X,Y,Z,R[,VX,VY,VZ]] [-box X,Y,Z,HX,HY,HZ[,VX,VY,VZ]]"+
+                               " [-plane X,Y,Z,NX,NY,NZ[,VX,VY,VZ]] [-sdf FILE]"+
+                               " [-emitter X,Y,Z,VX,VY,VZ,R[,LIMIT]] [-sink MINX,MINY,MINZ,MAXX,MAXY,MAXZ]");
+            System.exit(2);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println("OOPS: "+e);
+            System.exit(1);
+        }
+    }
+}
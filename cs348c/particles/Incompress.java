@@ -1,84 +1,90 @@
 package cs348c.particles;
 
 import java.util.*;
-import javax.vecmath.*;
-import com.jogamp.opengl.*;
-import com.jogamp.opengl.util.glsl.*;
 
 //This class handles the incompressibility constrants
 public class Incompress {
-	private static double clamp(double x, double min, double max) {
-        if (x <= min) return min;
-        if (x >= max) return max;
-        return x;
+    /**
+     * Density error of particle i from its current density: the
+     * compression max(0, C_i).
+     */
+    public static double densityError(ParticleStore s, int i) {
+        return Math.max(0., s.density[i] / Constants.RHO - 1);
     }
 
-    public static Point3d handleBoxCollisions(Point3d old, double rightWallLoc) {
-        Point3d result = new Point3d(old);
-        result.x = clamp(result.x, 0., rightWallLoc);
-        result.y = clamp(result.y, 0., 1.);
-        result.z = clamp(result.z, 0., 1.);
-        return result;
-    }
-
-    // EQUATION 1
-    private static double Ci(Particle p) {
-        p.density = getDensity(p);
-        double result = (p.density / Constants.RHO) - 1;
-        return result;
-    }
-
-    // EQUATION 2
-    public static double getDensity(Particle p) {
+    /**
+     * Re-evaluates the cached pair kernels of particle i from the
+     * current predicted positions, and returns its density (EQUATION 2)
+     * from the same neighbor pass.
+     */
+    public static double updateDensity(ParticleStore s, int i) {
+        NeighborList Ni = s.Ni;
+        Kernel kernel = Ni.kernel;
+        double xi = s.sx[i], yi = s.sy[i], zi = s.sz[i];
         double density = 0.;
-        for (Particle q : p.Ni) {
-            density += (q.m * Kernel.Wpoly6(VMath.subtract(p.x_star, q.x_star), Constants.H));
+        for (int k = Ni.offsets[i]; k < Ni.offsets[i + 1]; k++) {
+            int j = Ni.index[k];
+            double rx = xi - s.sx[j];
+            double ry = yi - s.sy[j];
+            double rz = zi - s.sz[j];
+            double r2 = rx * rx + ry * ry + rz * rz;
+            double g = kernel.spikyScale(r2);
+            double w = kernel.poly6(r2);
+            Ni.w[k]  = w;
+            Ni.gx[k] = rx * g;
+            Ni.gy[k] = ry * g;
+            Ni.gz[k] = rz * g;
+            Ni.sc[k] = kernel.sCorr(r2);
+            density += s.m[j] * w;
         }
-        density += (p.m * Kernel.Wpoly6(new Vector3d(0., 0., 0.), Constants.H));
+        density += (s.m[i] * Kernel.Wpoly6(0., 0., 0., Constants.H));
         return density;
     }
 
-    // EQUATION 8
-    private static double sumKGradCiSq(Particle p) {
-        double sum_grad_Ci = 0.;
-        Vector3d grad_Ci = new Vector3d(0., 0., 0.);
-
-        if (p.Ni.size() == 0) return 0.;
+    /**
+     * EQUATION 11: lambda of particle i. Re-evaluates and caches the
+     * pair kernels (for calcDeltaP) and the density (EQUATION 2, stored
+     * in s.density) with updateDensity(), then sums the constraint
+     * gradients (EQUATION 8) from the cached kernel gradients.
+     */
+    public static double calcLambda(ParticleStore s, int i) {
+        double density = updateDensity(s, i);
+        s.density[i] = density;
 
-        for (Particle q : p.Ni) {
-            Vector3d grad_pk_Ci = Kernel.Wspiky(VMath.subtract(p.x_star, q.x_star), Constants.H);
-            grad_pk_Ci.scale( 1 / Constants.RHO);
-            sum_grad_Ci += grad_pk_Ci.lengthSquared();
-            grad_Ci.add(grad_pk_Ci);
-            
+        NeighborList Ni = s.Ni;
+        double invRho = 1 / Constants.RHO;
+        double sum_grad_Ci = 0.;
+        double grad_Ci_x = 0., grad_Ci_y = 0., grad_Ci_z = 0.;
+        for (int k = Ni.offsets[i]; k < Ni.offsets[i + 1]; k++) {
+            double gx = Ni.gx[k] * invRho;
+            double gy = Ni.gy[k] * invRho;
+            double gz = Ni.gz[k] * invRho;
+            sum_grad_Ci += gx * gx + gy * gy + gz * gz;
+            grad_Ci_x += gx;
+            grad_Ci_y += gy;
+            grad_Ci_z += gz;
         }
 
-        double total = sum_grad_Ci + grad_Ci.lengthSquared();
-        return sum_grad_Ci + grad_Ci.lengthSquared();
-    }
-
-    //EQUATION 13
-    private static double calcSCorr(Vector3d pij) {
-        Vector3d delta_q_v = new Vector3d(Constants.DELTA_Q, 0., 0.);
-        double ratio = Kernel.Wpoly6(pij, Constants.H) / Kernel.Wpoly6(delta_q_v, Constants.H);
-        return Constants.S_CORR * Math.pow(ratio, Constants.N);
-    }
-
-    // EQUATION 11
-    public static double calcLambda(Particle p) {
-        return -Ci(p)/(sumKGradCiSq(p) + Constants.EPSILON);
+        // EQUATION 1
+        double Ci = (density / Constants.RHO) - 1;
+        sum_grad_Ci += grad_Ci_x * grad_Ci_x + grad_Ci_y * grad_Ci_y + grad_Ci_z * grad_Ci_z;
+        return -Ci / (sum_grad_Ci + Constants.EPSILON);
     }
 
     // EQUATION 14
-    public static Vector3d calcDeltaP(Particle p) {
-        Vector3d delta_p = new Vector3d(0., 0., 0.);
-        for (Particle q : p.Ni) { //p.Ni
-            Vector3d pij = VMath.subtract(p.x_star, q.x_star);
-            Vector3d gradW = Kernel.Wspiky(pij, Constants.H);
-            double s_corr = calcSCorr(pij);
-            gradW.scale(p.lambda + q.lambda - s_corr);
-            delta_p.add(gradW);
+    public static void calcDeltaP(ParticleStore s, int i) {
+        NeighborList Ni = s.Ni;
+        double dx = 0., dy = 0., dz = 0.;
+        for (int k = Ni.offsets[i]; k < Ni.offsets[i + 1]; k++) {
+            int j = Ni.index[k];
+            // EQUATION 13: s_corr is cached per pair by NeighborList
+            double c = s.lambda[i] + s.lambda[j] - Ni.sc[k];
+            dx += Ni.gx[k] * c;
+            dy += Ni.gy[k] * c;
+            dz += Ni.gz[k] * c;
         }
-        return VMath.scalDiv(delta_p, Constants.RHO);
+        s.dpx[i] = dx / Constants.RHO;
+        s.dpy[i] = dy / Constants.RHO;
+        s.dpz[i] = dz / Constants.RHO;
     }
-}
\ No newline at end of file
+}
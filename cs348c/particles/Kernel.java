@@ -2,26 +2,222 @@ package cs348c.particles;
 
 import java.util.*;
 import javax.vecmath.*;
-import com.jogamp.opengl.*;
-import com.jogamp.opengl.util.glsl.*;
 
+//SPH smoothing kernels.
+//A Kernel instance holds the normalization constants for one smoothing
+//radius h, precomputed once, and evaluates the kernels from the squared
+//pair distance. It can optionally evaluate them from lookup tables sized
+//to a requested error bound. The static Wpoly6/Wspiky methods evaluate
+//the kernels directly and are kept for convenience.
 public class Kernel {
+    /** Exact kernels for the simulation's smoothing radius Constants.H. */
+    public static final Kernel EXACT = new Kernel(Constants.H);
+
+    /** Largest lookup table tabulated() will build. */
+    private static final int MAX_TABLE_SIZE = 1 << 20;
+
+    /** Smoothing radius and its square. */
+    public final double h, h2;
+
+    /** 315 / (64 pi h^9) */
+    private final double poly6Coef;
+
+    /** 45 / (pi h^6) */
+    private final double spikyCoef;
+
+    /** Wpoly6 at the s_corr reference distance DELTA_Q. */
+    private final double poly6DeltaQ;
+
+    /** Exponent of s_corr as an int, or -1 if Constants.N is not integral. */
+    private final int sCorrPower;
+
+    /** Lookup tables, or null for exact evaluation. poly6 and s_corr are
+     *  indexed by r^2 in [0, h2], the spiky magnitude by r in [0, h]. */
+    private double[] poly6Table, sCorrTable, spikyTable;
+
+    /** Table entries per unit of the table's argument (r^2 or r). */
+    private double poly6TableScale, sCorrTableScale, spikyTableScale;
+
+    /** Error bound the tables were built for (0 when exact). */
+    private double maxError = 0;
+
+    /** Creates exact kernels for smoothing radius h. */
+    public Kernel(double h)
+    {
+        this.h  = h;
+        this.h2 = h * h;
+        poly6Coef = 315. / (64. * Math.PI * Math.pow(h, 9));
+        spikyCoef = 45. / (Math.PI * Math.pow(h, 6));
+        poly6DeltaQ = poly6(Constants.DELTA_Q * Constants.DELTA_Q);
+        sCorrPower = (Constants.N == Math.rint(Constants.N) && Constants.N >= 0) ? (int) Constants.N : -1;
+    }
+
+    /**
+     * Creates kernels for smoothing radius h that are evaluated by
+     * linear interpolation in lookup tables. Each table is made large
+     * enough that its error stays below maxError times the function's
+     * peak value.
+     */
+    public static Kernel tabulated(double h, double maxError)
+    {
+        if (!(maxError > 0)) throw new IllegalArgumentException("maxError must be positive: "+maxError);
+        Kernel exact = new Kernel(h);
+        Kernel k = new Kernel(h);
+        k.maxError = maxError;
+
+        k.poly6Table = buildTable(exact, 0, maxError);
+        k.sCorrTable = buildTable(exact, 1, maxError);
+        k.spikyTable = buildTable(exact, 2, maxError);
+        k.poly6TableScale = (k.poly6Table.length - 1) / k.h2;
+        k.sCorrTableScale = (k.sCorrTable.length - 1) / k.h2;
+        k.spikyTableScale = (k.spikyTable.length - 1) / h;
+        return k;
+    }
+
+    /** True if this kernel evaluates from lookup tables. */
+    public boolean isTabulated() {
+        return poly6Table != null;
+    }
+
+    /** Error bound of the lookup tables, relative to each function's peak (0 when exact). */
+    public double getMaxError() {
+        return maxError;
+    }
+
+    /** Wpoly6 of a pair at squared distance r2. */
+    public double poly6(double r2)
+    {
+        if (r2 <= 0. || r2 >= h2) return 0.;
+        if (poly6Table != null) return lookup(poly6Table, r2 * poly6TableScale);
+        double d = h2 - r2;
+        return poly6Coef * (d * d * d);
+    }
+
+    /**
+     * Scale s such that the spiky kernel gradient of a pair at offset
+     * r, with squared length r2, is s * r. Needs one sqrt.
+     */
+    public double spikyScale(double r2)
+    {
+        if (r2 <= 0. || r2 >= h2) return 0.;
+        double r = Math.sqrt(r2);
+        double scale = -spikyMagnitude(r) / r;
+        return (scale == Double.NEGATIVE_INFINITY) ? 0 : scale;
+    }
+
+    /** Tensile instability correction s_corr (EQUATION 13) at squared distance r2. */
+    public double sCorr(double r2)
+    {
+        if (r2 <= 0. || r2 >= h2) return 0.;
+        if (sCorrTable != null) return lookup(sCorrTable, r2 * sCorrTableScale);
+        return exactSCorr(poly6(r2));
+    }
+
+    private double spikyMagnitude(double r)
+    {
+        if (spikyTable != null) return lookup(spikyTable, r * spikyTableScale);
+        double d = h - r;
+        return spikyCoef * (d * d);
+    }
+
+    private double exactSCorr(double w)
+    {
+        double ratio = w / poly6DeltaQ;
+        if (sCorrPower < 0) return Constants.S_CORR * Math.pow(ratio, Constants.N);
+        double p = 1;
+        for (int e = 0; e < sCorrPower; e++) p *= ratio;
+        return Constants.S_CORR * p;
+    }
+
+    private static double lookup(double[] table, double x)
+    {
+        int i = (int) x;
+        if (i >= table.length - 1) return table[table.length - 1];
+        double t = x - i;
+        return table[i] + t * (table[i + 1] - table[i]);
+    }
+
+    // Exact value of table function f at parameter u in [0, 1]:
+    // 0 = poly6(u h^2), 1 = s_corr(u h^2), 2 = spiky magnitude(u h).
+    private static double tableFunction(Kernel exact, int f, double u)
+    {
+        switch (f) {
+            case 0:  return exact.poly6(u * exact.h2);
+            case 1:  return exact.sCorr(u * exact.h2);
+            default: return exact.spikyMagnitude(u * exact.h);
+        }
+    }
+
+    private static double[] fillTable(Kernel exact, int f, int size)
+    {
+        double[] table = new double[size];
+        for (int i = 0; i < size; i++) {
+            table[i] = tableFunction(exact, f, i / (double) (size - 1));
+        }
+        // the functions are discontinuous at r = 0; use the limit
+        table[0] = 2 * table[1] - table[2];
+        return table;
+    }
+
+    // Doubles the table size until interpolation at every interval
+    // midpoint is within maxError of the exact value, relative to the
+    // function's peak.
+    private static double[] buildTable(Kernel exact, int f, double maxError)
+    {
+        for (int size = 65; size <= MAX_TABLE_SIZE + 1; size = 2 * size - 1) {
+            double[] table = fillTable(exact, f, size);
+            double peak = 0;
+            for (double v : table) peak = Math.max(peak, Math.abs(v));
+
+            double err = 0;
+            for (int i = 0; i < size - 1; i++) {
+                double u = (i + 0.5) / (size - 1);
+                double approx = lookup(table, u * (size - 1));
+                err = Math.max(err, Math.abs(approx - tableFunction(exact, f, u)));
+            }
+            if (err <= maxError * peak) return table;
+        }
+        throw new IllegalArgumentException("cannot reach kernel table error "+maxError+
+                                           " with "+MAX_TABLE_SIZE+" entries");
+    }
+
 	public static double Wpoly6(Vector3d r, double h) {
-        if (r.length() <= 0. || r.length() >= h) {
+        return Wpoly6(r.x, r.y, r.z, h);
+    }
+
+    public static double Wpoly6(double rx, double ry, double rz, double h) {
+        double r2 = rx * rx + ry * ry + rz * rz;
+        double r = Math.sqrt(r2);
+        if (r <= 0. || r >= h) {
             return 0.;
         }
 
         double result = 315. / (64. * Math.PI * Math.pow(h, 9));
-        result *= Math.pow((h * h - r.lengthSquared()), 3);
+        result *= Math.pow((h * h - r2), 3);
         return result;
     }
 
     public static Vector3d Wspiky(Vector3d r, double h) {
-        if (r.length() <= 0. || r.length() >= h) {
-            return new Vector3d(0., 0., 0.);
+        Vector3d grad = new Vector3d();
+        Wspiky(r.x, r.y, r.z, h, grad);
+        return grad;
+    }
+
+    // writes the gradient of the spiky kernel at r into grad
+    public static void Wspiky(double rx, double ry, double rz, double h, Tuple3d grad) {
+        double r = Math.sqrt(rx * rx + ry * ry + rz * rz);
+        if (r <= 0. || r >= h) {
+            grad.set(0., 0., 0.);
+            return;
         }
-        Vector3d norm = VMath.norm(r);
-        double scale = Math.pow(h - r.length(), 2) * 45. / (Math.PI * Math.pow(h, 6));
-        return VMath.scalMult(norm, -scale);
+        double scale = -(Math.pow(h - r, 2) * 45. / (Math.PI * Math.pow(h, 6)));
+        grad.x = finite((rx / r) * scale);
+        grad.y = finite((ry / r) * scale);
+        grad.z = finite((rz / r) * scale);
+    }
+
+    // same guard as VMath.scalMult: infinities become 0
+    private static double finite(double x) {
+        return (x == Double.NEGATIVE_INFINITY || x == Double.POSITIVE_INFINITY) ? 0 : x;
     }
-}
\ No newline at end of file
+}
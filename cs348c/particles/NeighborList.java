@@ -0,0 +1,146 @@
+package cs348c.particles;
+
+import java.util.*;
+
+//Neighbor lists in compressed sparse row form.
+//The neighbors of particle i are index[offsets[i]] .. index[offsets[i+1]-1],
+//and the per-pair kernel values for the same slots live in w, gx, gy, gz, sc.
+public class NeighborList
+{
+    /** Start of each particle's neighbor range (n + 1 entries). */
+    int[] offsets = new int[1];
+
+    /** Neighbor particle indices, grouped by particle. */
+    int[] index = new int[0];
+
+    /** Wpoly6(x_star[i] - x_star[j]) for each pair. */
+    double[] w = new double[0];
+
+    /** Wspiky gradient of x_star[i] - x_star[j] for each pair. */
+    double[] gx = new double[0], gy = new double[0], gz = new double[0];
+
+    /** s_corr of each pair. */
+    double[] sc = new double[0];
+
+    /** Kernels used to fill the pair arrays. */
+    Kernel kernel = Kernel.EXACT;
+
+    /** Number of particles the lists were built for. */
+    int n = 0;
+
+    /** Per-chunk neighbor buffers of a parallel build. */
+    private int[][] chunkIndex = new int[0][];
+
+    /** Number of entries used in each chunk buffer. */
+    private int[] chunkSize = new int[0];
+
+    /** Offset of each chunk's first entry in index. */
+    private int[] chunkBase = new int[0];
+
+    /** Number of stored pairs. */
+    public int pairs() {
+        return offsets[n];
+    }
+
+    /** Number of neighbors of particle i. */
+    public int count(int i) {
+        return offsets[i + 1] - offsets[i];
+    }
+
+    /**
+     * Rebuilds the lists from a grid built over s. The pair kernels are
+     * left stale; call Incompress.updateDensity() (or calcLambda()) per
+     * particle before reading them.
+     */
+    public void build(Grid grid, ParticleStore s)
+    {
+        build(grid, s, null);
+    }
+
+    /**
+     * Parallel version of build(Grid, ParticleStore). Each chunk of
+     * particles gathers its neighbors into a private buffer with local
+     * offsets; after a scan over the chunk sizes the buffers are copied
+     * into place and the offsets rebased, again chunk by chunk.
+     */
+    public void build(final Grid grid, final ParticleStore s, WorkerPool pool)
+    {
+        n = s.n;
+        if (offsets.length < n + 1) {
+            offsets = new int[s.capacity() + 1];
+        }
+
+        final int maxNeighbors = grid.maxNeighbors();
+        int chunks = (pool == null) ? 1 : pool.chunkCount(n);
+        if (chunks == 1) {
+            // Single chunk: gather straight into index.
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                offsets[i] = count;
+                if (index.length < count + maxNeighbors) {
+                    index = Arrays.copyOf(index, Math.max(2 * index.length, count + maxNeighbors));
+                }
+                count += grid.getNeighbors(s, i, index, count);
+            }
+            offsets[n] = count;
+            ensurePairCapacity(count);
+            return;
+        }
+
+        if (chunkIndex.length < chunks) {
+            chunkIndex = Arrays.copyOf(chunkIndex, chunks);
+            chunkSize  = Arrays.copyOf(chunkSize, chunks);
+            chunkBase  = Arrays.copyOf(chunkBase, chunks);
+        }
+
+        pool.forEachChunk(n, new WorkerPool.ChunkTask() {
+            public void run(int chunk, int from, int to) {
+                int[] buf = chunkIndex[chunk];
+                if (buf == null) buf = new int[maxNeighbors];
+                int count = 0;
+                for (int i = from; i < to; i++) {
+                    offsets[i] = count;
+                    if (buf.length < count + maxNeighbors) {
+                        buf = Arrays.copyOf(buf, Math.max(2 * buf.length, count + maxNeighbors));
+                    }
+                    count += grid.getNeighbors(s, i, buf, count);
+                }
+                chunkIndex[chunk] = buf;
+                chunkSize[chunk]  = count;
+            }
+        });
+
+        int total = 0;
+        for (int c = 0; c < chunks; c++) {
+            chunkBase[c] = total;
+            total += chunkSize[c];
+        }
+        offsets[n] = total;
+        if (index.length < total) {
+            index = new int[Math.max(2 * index.length, total)];
+        }
+        ensurePairCapacity(total);
+
+        pool.forEachChunk(n, new WorkerPool.ChunkTask() {
+            public void run(int chunk, int from, int to) {
+                int base = chunkBase[chunk];
+                for (int i = from; i < to; i++) {
+                    offsets[i] += base;
+                }
+                System.arraycopy(chunkIndex[chunk], 0, index, base, chunkSize[chunk]);
+            }
+        });
+    }
+
+    private void ensurePairCapacity(int pairs)
+    {
+        if (w.length < pairs) {
+            int capacity = Math.max(index.length, pairs);
+            w  = new double[capacity];
+            gx = new double[capacity];
+            gy = new double[capacity];
+            gz = new double[capacity];
+            sc = new double[capacity];
+        }
+    }
+}
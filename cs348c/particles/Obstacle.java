@@ -0,0 +1,72 @@
+package cs348c.particles;
+
+/**
+ * Solid obstacle that particles are pushed out of (see Collisions). The
+ * shape is placed at a position, a reference point defined by each
+ * subclass, and moves with a constant velocity: Collisions moves it by
+ * velocity * dt at the start of every step, and the particles it pushes
+ * take up its motion. Static obstacles have velocity 0.
+ *
+ * collide() runs on several worker threads at once for disjoint
+ * ranges of particles, so it must only write the predicted positions
+ * of its own range, and must not allocate. The position, velocity and
+ * shape may be changed between steps, e.g. while holding the
+ * ParticleSystem's lock.
+ */
+public abstract class Obstacle implements Checkpoint.Stateful
+{
+    /** Position and velocity. */
+    protected double x, y, z;
+    protected double vx = 0, vy = 0, vz = 0;
+
+    protected Obstacle(double x, double y, double z) {
+        setPosition(x, y, z);
+    }
+
+    public void setPosition(double x, double y, double z)
+    {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
+    public void setVelocity(double vx, double vy, double vz)
+    {
+        this.vx = vx;
+        this.vy = vy;
+        this.vz = vz;
+    }
+
+    /** Moves the obstacle by velocity * dt. */
+    void move(double dt)
+    {
+        x += vx * dt;
+        y += vy * dt;
+        z += vz * dt;
+    }
+
+    /**
+     * Stores the axis-aligned bounds of the region in which particles
+     * may be moved, as min x, y, z and max x, y, z, into b starting at
+     * offset. Bounds may be infinite.
+     */
+    public abstract void getBounds(double[] b, int offset);
+
+    /**
+     * Pushes the predicted positions (sx, sy, sz) of particles
+     * [from, to) of s that lie inside the obstacle to its surface.
+     * @return Number of particles moved.
+     */
+    public abstract int collide(ParticleStore s, int from, int to);
+
+    /** Position and velocity. */
+    public double[] getState() {
+        return new double[] { x, y, z, vx, vy, vz };
+    }
+
+    public void setState(double[] state)
+    {
+        setPosition(state[0], state[1], state[2]);
+        setVelocity(state[3], state[4], state[5]);
+    }
+}
@@ -0,0 +1,168 @@
+package cs348c.particles;
+
+import java.nio.*;
+
+import com.jogamp.common.nio.Buffers;
+import com.jogamp.opengl.*;
+import com.jogamp.opengl.util.glsl.*;
+
+/**
+ * Draws a ParticleSystem with OpenGL. Kept separate from ParticleSystem
+ * so that the simulation can run without JOGL on the classpath.
+ *
+ * Particles are drawn in one call: positions and the density, speed and
+ * highlight of every particle are uploaded into a vertex buffer object
+ * each frame and drawn as point sprites, which vert.glsl and frag.glsl
+ * color and shade as spheres.
+ */
+public class ParticleRenderer
+{
+    /** Floats per particle in the vertex buffer: x, y, z, density, speed^2, highlight. */
+    private static final int FLOATS_PER_PARTICLE = 6;
+
+    /** The particle system being drawn. */
+    private final ParticleSystem PS;
+
+    /**
+     * true iff prog has been initialized. This cannot be done in the
+     * constructor because it requires a GL2 reference.
+     */
+    private boolean init = false;
+
+    /** Filename of vertex shader source. */
+    public static final String[] VERT_SOURCE = {"vert.glsl"};
+
+    /** Filename of fragment shader source. */
+    public static final String[] FRAG_SOURCE = {"frag.glsl"};
+
+    /** The shader program used by the particles. */
+    ShaderProgram prog;
+
+    /** Attribute and uniform locations in prog. */
+    private int positionAttrib, shadeAttrib, radiusUniform, viewportUniform;
+
+    /** Vertex buffer object holding the particles, and its size in particles. */
+    private int vbo = 0;
+    private int vboCapacity = 0;
+
+    /** Client-side staging copy of the vertex buffer. */
+    private FloatBuffer vertices = Buffers.newDirectFloatBuffer(0);
+
+    /** Snapshot used by display(GL2). */
+    private final FrameSnapshot snapshot = new FrameSnapshot();
+
+    public ParticleRenderer(ParticleSystem PS)
+    {
+        this.PS = PS;
+    }
+
+    /**
+     * Set up the GLSL program. This requires that the current directory (i.e. the package in which
+     * this class resides) has a vertex and fragment shader.
+     */
+    public void init(GL2 gl) {
+        if (init) return;
+
+        prog = new ShaderProgram();
+        ShaderCode vert_code = ShaderCode.create(gl, GL2ES2.GL_VERTEX_SHADER, 1, this.getClass(), VERT_SOURCE, false);
+        ShaderCode frag_code = ShaderCode.create(gl, GL2ES2.GL_FRAGMENT_SHADER, 1, this.getClass(), FRAG_SOURCE, false);
+        if (!prog.add(gl, vert_code, System.err) || !prog.add(gl, frag_code, System.err)) {
+            System.err.println("WARNING: shader did not compile");
+            prog.init(gl); // Initialize empty program
+        } else {
+            // generic attribute 0 must be the position on some drivers
+            gl.glBindAttribLocation(prog.program(), 0, "position");
+            prog.link(gl, System.err);
+        }
+
+        positionAttrib  = gl.glGetAttribLocation(prog.program(), "position");
+        shadeAttrib     = gl.glGetAttribLocation(prog.program(), "shade");
+        radiusUniform   = gl.glGetUniformLocation(prog.program(), "radius");
+        viewportUniform = gl.glGetUniformLocation(prog.program(), "viewportHeight");
+
+        int[] buffers = new int[1];
+        gl.glGenBuffers(1, buffers, 0);
+        vbo = buffers[0];
+
+        init = true;
+    }
+
+    /**
+     * Displays Particle and Force objects. Modify how you like.
+     * Takes the particle system's lock while copying its state, to
+     * avoid drawing during a call to advanceTime().
+     */
+    public void display(GL2 gl)
+    {
+        snapshot.capture(PS);
+        display(gl, snapshot);
+    }
+
+    /**
+     * Displays the particles and forces of a snapshot. Does not take
+     * the particle system's lock, so it never waits for the solver.
+     */
+    public void display(GL2 gl, FrameSnapshot snap)
+    {
+        for(Force force : snap.forces) {
+            force.display(gl);
+        }
+
+        if(!init) init(gl);
+
+        int n = snap.n;
+        if (n == 0 || positionAttrib < 0) return;
+        upload(gl, snap);
+
+        int[] viewport = new int[4];
+        gl.glGetIntegerv(GL.GL_VIEWPORT, viewport, 0);
+
+        prog.useProgram(gl, true);
+        gl.glUniform1f(radiusUniform, (float) Particle.PARTICLE_RADIUS);
+        gl.glUniform1f(viewportUniform, viewport[3]);
+        gl.glEnable(GL2.GL_VERTEX_PROGRAM_POINT_SIZE);
+        gl.glEnable(GL2.GL_POINT_SPRITE);
+
+        int stride = 4 * FLOATS_PER_PARTICLE;
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vbo);
+        gl.glEnableVertexAttribArray(positionAttrib);
+        gl.glVertexAttribPointer(positionAttrib, 3, GL.GL_FLOAT, false, stride, 0L);
+        if (shadeAttrib >= 0) {
+            gl.glEnableVertexAttribArray(shadeAttrib);
+            gl.glVertexAttribPointer(shadeAttrib, 3, GL.GL_FLOAT, false, stride, 12L);
+        }
+
+        gl.glDrawArrays(GL.GL_POINTS, 0, n);
+
+        gl.glDisableVertexAttribArray(positionAttrib);
+        if (shadeAttrib >= 0) gl.glDisableVertexAttribArray(shadeAttrib);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+        gl.glDisable(GL2.GL_POINT_SPRITE);
+        gl.glDisable(GL2.GL_VERTEX_PROGRAM_POINT_SIZE);
+        prog.useProgram(gl, false);
+    }
+
+    // Interleaves the snapshot into the staging buffer and streams it
+    // into the VBO, reallocating (orphaning) the VBO's storage each frame
+    // so the driver never waits for the previous frame's draw.
+    private void upload(GL2 gl, FrameSnapshot snap)
+    {
+        int n = snap.n;
+        if (vertices.capacity() < FLOATS_PER_PARTICLE * n) {
+            vertices = Buffers.newDirectFloatBuffer(FLOATS_PER_PARTICLE * Math.max(n, 2 * vboCapacity));
+        }
+        float[] pos = snap.pos;
+        vertices.clear();
+        for (int i = 0; i < n; i++) {
+            vertices.put(pos[3 * i]).put(pos[3 * i + 1]).put(pos[3 * i + 2]);
+            vertices.put(snap.density[i]).put(snap.speedSq[i]).put(snap.highlight[i] ? 1f : 0f);
+        }
+        vertices.flip();
+
+        vboCapacity = vertices.capacity() / FLOATS_PER_PARTICLE;
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vbo);
+        gl.glBufferData(GL.GL_ARRAY_BUFFER, 4L * vertices.capacity(), null, GL2.GL_STREAM_DRAW);
+        gl.glBufferSubData(GL.GL_ARRAY_BUFFER, 0, 4L * vertices.remaining(), vertices);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+    }
+}
@@ -0,0 +1,427 @@
+package cs348c.particles;
+
+import java.util.*;
+
+/**
+ * Structure-of-arrays storage for particle state. Every per-particle
+ * quantity lives in its own primitive array indexed by slot, so
+ * the solver passes stream through memory instead of chasing Particle
+ * references.
+ *
+ * Particle objects are thin views onto a slot of this store and are
+ * only used by the GUI and the exporters.
+ *
+ * Slots can be reordered (see permute()) to keep particles that are
+ * close in space close in memory. Each particle keeps a stable id, its
+ * creation order, which the exporters use to write particles in the
+ * same order every frame.
+ *
+ * Particles can be removed (see remove()). The freed slots are filled
+ * from the end, so slots [0, n) stay dense, and the ids go onto a free
+ * list for the next particles added. The arrays never shrink, so a
+ * system that adds and removes particles at the same rate stops
+ * allocating once it reaches its peak size.
+ */
+public class ParticleStore
+{
+    /** Initial number of particle slots. */
+    private static final int DEFAULT_CAPACITY = 64;
+
+    /** Number of live particles (slots [0, n) are in use). */
+    int n = 0;
+
+    /** Mass. */
+    double[] m;
+
+    /** Deformed position. */
+    double[] px, py, pz;
+
+    /** Undeformed/material position. */
+    double[] p0x, p0y, p0z;
+
+    /** Predicted position (x_star). */
+    double[] sx, sy, sz;
+
+    /** Velocity. */
+    double[] vx, vy, vz;
+
+    /** Force accumulator. */
+    double[] fx, fy, fz;
+
+    /** Position correction (delta p). */
+    double[] dpx, dpy, dpz;
+
+    /** Vorticity (omega). */
+    double[] wx, wy, wz;
+
+    /** Incompressibility multiplier. */
+    double[] lambda;
+
+    /** SPH density estimate. */
+    double[] density;
+
+    /** Stable id of the particle in each slot. */
+    int[] id;
+
+    /** Slot of each particle id (the inverse of id), or -1 for free ids. */
+    int[] slot;
+
+    /** Number of ids handed out, live or free; ids are in [0, ids). */
+    int ids = 0;
+
+    /** Stack of free ids, reused before new ones. */
+    int[] freeIds = new int[0];
+    int freeCount = 0;
+
+    /** Spare array that permute() fills and swaps with a state array. */
+    private double[] spare = new double[0];
+    private int[] spareInt = new int[0];
+
+    /** Neighbor lists of all particles, rebuilt every step. */
+    NeighborList Ni = new NeighborList();
+
+    public ParticleStore()
+    {
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    /** Creates an empty store with room for capacity particles. */
+    public ParticleStore(int capacity)
+    {
+        allocate(Math.max(1, capacity));
+    }
+
+    /** Number of live particles. */
+    public int size() {
+        return n;
+    }
+
+    /** Number of particles the arrays can hold without growing. */
+    public int capacity() {
+        return m.length;
+    }
+
+    /**
+     * Grows every array so that at least minCapacity particles fit.
+     * Use before bulk insertion to avoid repeated copying.
+     */
+    public void ensureCapacity(int minCapacity)
+    {
+        if (minCapacity <= m.length) return;
+        int newCapacity = Math.max(minCapacity, 2 * m.length);
+
+        m       = Arrays.copyOf(m, newCapacity);
+        px      = Arrays.copyOf(px, newCapacity);
+        py      = Arrays.copyOf(py, newCapacity);
+        pz      = Arrays.copyOf(pz, newCapacity);
+        p0x     = Arrays.copyOf(p0x, newCapacity);
+        p0y     = Arrays.copyOf(p0y, newCapacity);
+        p0z     = Arrays.copyOf(p0z, newCapacity);
+        sx      = Arrays.copyOf(sx, newCapacity);
+        sy      = Arrays.copyOf(sy, newCapacity);
+        sz      = Arrays.copyOf(sz, newCapacity);
+        vx      = Arrays.copyOf(vx, newCapacity);
+        vy      = Arrays.copyOf(vy, newCapacity);
+        vz      = Arrays.copyOf(vz, newCapacity);
+        fx      = Arrays.copyOf(fx, newCapacity);
+        fy      = Arrays.copyOf(fy, newCapacity);
+        fz      = Arrays.copyOf(fz, newCapacity);
+        dpx     = Arrays.copyOf(dpx, newCapacity);
+        dpy     = Arrays.copyOf(dpy, newCapacity);
+        dpz     = Arrays.copyOf(dpz, newCapacity);
+        wx      = Arrays.copyOf(wx, newCapacity);
+        wy      = Arrays.copyOf(wy, newCapacity);
+        wz      = Arrays.copyOf(wz, newCapacity);
+        lambda  = Arrays.copyOf(lambda, newCapacity);
+        density = Arrays.copyOf(density, newCapacity);
+        id      = Arrays.copyOf(id, newCapacity);
+        slot    = Arrays.copyOf(slot, newCapacity);
+    }
+
+    /**
+     * Appends a particle at rest with the specified undeformed position.
+     * @return Index of the new particle.
+     */
+    public int add(double x, double y, double z)
+    {
+        ensureCapacity(n + 1);
+        int i = n++;
+        init(i, x, y, z);
+        return i;
+    }
+
+    /**
+     * Appends count particles at rest, with undeformed positions taken
+     * from the interleaved x, y, z coordinates in pos. Reserves capacity
+     * once for all of them.
+     * @return Index of the first new particle.
+     */
+    public int addAll(double[] pos, int count)
+    {
+        ensureCapacity(n + count);
+        int first = n;
+        for (int k = 0; k < count; k++) {
+            init(first + k, pos[3 * k], pos[3 * k + 1], pos[3 * k + 2]);
+        }
+        n += count;
+        return first;
+    }
+
+    private void init(int i, double x, double y, double z)
+    {
+        int k = (freeCount > 0) ? freeIds[--freeCount] : ids++;
+        id[i] = k;
+        slot[k] = i;
+        px[i] = x;
+        py[i] = y;
+        pz[i] = z;
+        initAtRest(i);
+    }
+
+    /**
+     * Makes the first count slots, whose positions were written to px,
+     * py and pz directly (e.g. by a frame loader), the only particles,
+     * at rest, with ids in slot order. Capacity for count particles must
+     * have been reserved.
+     */
+    void initAll(final int count, WorkerPool pool)
+    {
+        pool.parallelFor(count, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                id[i] = slot[i] = i;
+                initAtRest(i);
+            }
+        });
+        n = ids = count;
+        freeCount = 0;
+    }
+
+    // Initializes the state of slot i, at rest at its position.
+    private void initAtRest(int i)
+    {
+        m[i] = Constants.PARTICLE_MASS;
+        p0x[i] = px[i];
+        p0y[i] = py[i];
+        p0z[i] = pz[i];
+        sx[i] = sy[i] = sz[i] = 0;
+        vx[i] = vy[i] = vz[i] = 0;
+        fx[i] = fy[i] = fz[i] = 0;
+        dpx[i] = dpy[i] = dpz[i] = 0;
+        wx[i] = wy[i] = wz[i] = 0;
+        lambda[i] = 0;
+        density[i] = 7000.;
+    }
+
+    /**
+     * Exchanges all particles, with their arrays and ids, with those of
+     * other. The neighbor lists are kept, so kernel settings carry over.
+     */
+    void swap(ParticleStore other)
+    {
+        double[] d;
+        d = m;        m = other.m;              other.m = d;
+        d = px;       px = other.px;            other.px = d;
+        d = py;       py = other.py;            other.py = d;
+        d = pz;       pz = other.pz;            other.pz = d;
+        d = p0x;      p0x = other.p0x;          other.p0x = d;
+        d = p0y;      p0y = other.p0y;          other.p0y = d;
+        d = p0z;      p0z = other.p0z;          other.p0z = d;
+        d = sx;       sx = other.sx;            other.sx = d;
+        d = sy;       sy = other.sy;            other.sy = d;
+        d = sz;       sz = other.sz;            other.sz = d;
+        d = vx;       vx = other.vx;            other.vx = d;
+        d = vy;       vy = other.vy;            other.vy = d;
+        d = vz;       vz = other.vz;            other.vz = d;
+        d = fx;       fx = other.fx;            other.fx = d;
+        d = fy;       fy = other.fy;            other.fy = d;
+        d = fz;       fz = other.fz;            other.fz = d;
+        d = dpx;      dpx = other.dpx;          other.dpx = d;
+        d = dpy;      dpy = other.dpy;          other.dpy = d;
+        d = dpz;      dpz = other.dpz;          other.dpz = d;
+        d = wx;       wx = other.wx;            other.wx = d;
+        d = wy;       wy = other.wy;            other.wy = d;
+        d = wz;       wz = other.wz;            other.wz = d;
+        d = lambda;   lambda = other.lambda;    other.lambda = d;
+        d = density;  density = other.density;  other.density = d;
+
+        int[] a;
+        a = id;       id = other.id;            other.id = a;
+        a = slot;     slot = other.slot;        other.slot = a;
+        a = freeIds;  freeIds = other.freeIds;  other.freeIds = a;
+
+        int t;
+        t = n;          n = other.n;                  other.n = t;
+        t = ids;        ids = other.ids;              other.ids = t;
+        t = freeCount;  freeCount = other.freeCount;  other.freeCount = t;
+    }
+
+    /** Removes all particles, keeping the allocated arrays. */
+    public void clear() {
+        n = 0;
+        ids = 0;
+        freeCount = 0;
+    }
+
+    /**
+     * Removes the particles in the specified slots, which must be
+     * distinct and in ascending order, and frees their ids. Each freed
+     * slot below the new particle count is filled with a particle from
+     * the end, in ascending order, so after the call slot slots[k] holds
+     * the particle from a higher slot for each k with slots[k] < n.
+     */
+    public void remove(int[] slots, int count)
+    {
+        if (count == 0) return;
+        int newN = n - count;
+        if (freeIds.length < ids) freeIds = Arrays.copyOf(freeIds, Math.max(ids, 2 * freeIds.length));
+        for (int k = 0; k < count; k++) {
+            int removed = id[slots[k]];
+            slot[removed] = -1;
+            freeIds[freeCount++] = removed;
+        }
+
+        // slots at or past newN that are removed too are skipped
+        int tail = 0;
+        while (tail < count && slots[tail] < newN) tail++;
+        int hole = 0, skip = tail;
+        for (int src = newN; src < n; src++) {
+            if (skip < count && slots[skip] == src) {
+                skip++;
+                continue;
+            }
+            move(src, slots[hole++]);
+        }
+        n = newN;
+    }
+
+    // Moves the particle in slot src to slot dst.
+    private void move(int src, int dst)
+    {
+        m[dst] = m[src];
+        px[dst] = px[src];  py[dst] = py[src];  pz[dst] = pz[src];
+        p0x[dst] = p0x[src];  p0y[dst] = p0y[src];  p0z[dst] = p0z[src];
+        sx[dst] = sx[src];  sy[dst] = sy[src];  sz[dst] = sz[src];
+        vx[dst] = vx[src];  vy[dst] = vy[src];  vz[dst] = vz[src];
+        fx[dst] = fx[src];  fy[dst] = fy[src];  fz[dst] = fz[src];
+        dpx[dst] = dpx[src];  dpy[dst] = dpy[src];  dpz[dst] = dpz[src];
+        wx[dst] = wx[src];  wy[dst] = wy[src];  wz[dst] = wz[src];
+        lambda[dst] = lambda[src];
+        density[dst] = density[src];
+        id[dst] = id[src];
+        slot[id[dst]] = dst;
+    }
+
+    /**
+     * Writes the slots of all particles, in id order, to order[0, n).
+     * Exporters use it to list particles in the same order every frame.
+     */
+    public void slotsById(int[] order)
+    {
+        if (freeCount == 0) {
+            System.arraycopy(slot, 0, order, 0, n);
+            return;
+        }
+        int k = 0;
+        for (int i = 0; i < ids; i++) {
+            if (slot[i] >= 0) order[k++] = slot[i];
+        }
+    }
+
+    /** Moves particle i back to its undeformed position, at rest. */
+    public void reset(int i)
+    {
+        px[i] = p0x[i];
+        py[i] = p0y[i];
+        pz[i] = p0z[i];
+        vx[i] = vy[i] = vz[i] = 0;
+        fx[i] = fy[i] = fz[i] = 0;
+    }
+
+    private void allocate(int capacity)
+    {
+        m       = new double[capacity];
+        px      = new double[capacity];
+        py      = new double[capacity];
+        pz      = new double[capacity];
+        p0x     = new double[capacity];
+        p0y     = new double[capacity];
+        p0z     = new double[capacity];
+        sx      = new double[capacity];
+        sy      = new double[capacity];
+        sz      = new double[capacity];
+        vx      = new double[capacity];
+        vy      = new double[capacity];
+        vz      = new double[capacity];
+        fx      = new double[capacity];
+        fy      = new double[capacity];
+        fz      = new double[capacity];
+        dpx     = new double[capacity];
+        dpy     = new double[capacity];
+        dpz     = new double[capacity];
+        wx      = new double[capacity];
+        wy      = new double[capacity];
+        wz      = new double[capacity];
+        lambda  = new double[capacity];
+        density = new double[capacity];
+        id      = new int[capacity];
+        slot    = new int[capacity];
+    }
+
+    /**
+     * Reorders the slots so that slot k holds the particle previously in
+     * slot order[k], for all k in [0, n). order must be a permutation.
+     * Every state array is permuted, and slot is updated so that ids
+     * still find their particles.
+     */
+    public void permute(final int[] order, WorkerPool pool)
+    {
+        m       = permuted(m, order, pool);
+        px      = permuted(px, order, pool);
+        py      = permuted(py, order, pool);
+        pz      = permuted(pz, order, pool);
+        p0x     = permuted(p0x, order, pool);
+        p0y     = permuted(p0y, order, pool);
+        p0z     = permuted(p0z, order, pool);
+        sx      = permuted(sx, order, pool);
+        sy      = permuted(sy, order, pool);
+        sz      = permuted(sz, order, pool);
+        vx      = permuted(vx, order, pool);
+        vy      = permuted(vy, order, pool);
+        vz      = permuted(vz, order, pool);
+        fx      = permuted(fx, order, pool);
+        fy      = permuted(fy, order, pool);
+        fz      = permuted(fz, order, pool);
+        dpx     = permuted(dpx, order, pool);
+        dpy     = permuted(dpy, order, pool);
+        dpz     = permuted(dpz, order, pool);
+        wx      = permuted(wx, order, pool);
+        wy      = permuted(wy, order, pool);
+        wz      = permuted(wz, order, pool);
+        lambda  = permuted(lambda, order, pool);
+        density = permuted(density, order, pool);
+
+        if (spareInt.length != id.length) spareInt = new int[id.length];
+        final int[] src = id, dst = spareInt;
+        pool.parallelFor(n, (from, to) -> {
+            for (int k = from; k < to; k++) dst[k] = src[order[k]];
+        });
+        spareInt = id;
+        id = dst;
+        pool.parallelFor(n, (from, to) -> {
+            for (int k = from; k < to; k++) slot[dst[k]] = k;
+        });
+    }
+
+    // Fills the spare array with a reordered by order and returns it;
+    // a becomes the new spare.
+    private double[] permuted(final double[] a, final int[] order, WorkerPool pool)
+    {
+        if (spare.length != a.length) spare = new double[a.length];
+        final double[] dst = spare;
+        pool.parallelFor(n, (from, to) -> {
+            for (int k = from; k < to; k++) dst[k] = a[order[k]];
+        });
+        spare = a;
+        return dst;
+    }
+}
@@ -2,13 +2,12 @@ package cs348c.particles;
 
 import java.util.*;
 import javax.vecmath.*;
-import com.jogamp.opengl.*;
-import com.jogamp.opengl.util.glsl.*;
 
 
 /**
  * Maintains dynamic lists of Particle and Force objects, and provides
- * access to their state for numerical integration of dynamics.
+ * access to their state for numerical integration of dynamics. Has no
+ * OpenGL dependencies; drawing is done by ParticleRenderer.
  *
  * @author Doug James, January 2007
  * @author Eston Schweickart, February 2014
@@ -20,51 +19,221 @@ public class ParticleSystem //implements Serializable
 
     public double rightWallLoc = 1.;
 
-    /** List of Particle objects. */
+    /**
+     * Extents of the box along y and z; the box spans
+     * [0, rightWallLoc]x[0, boxHeight]x[0, boxDepth]. Any of the three
+     * may be infinite to leave that side open; the neighbor grid is
+     * unbounded.
+     */
+    public double boxHeight = 1.;
+    public double boxDepth = 1.;
+
+    /** Structure-of-arrays storage of all particle state. */
+    public ParticleStore S = new ParticleStore();
+
+    /**
+     * Particle views used by the GUI, indexed by particle id. Views are
+     * only created on request, by createParticle() and
+     * getNearestParticle(), so entries are null for the other ids. A
+     * removed particle's view is no longer alive and leaves the list.
+     */
     public ArrayList<Particle>   P = new ArrayList<Particle>();
 
-    /** List of Force objects. */
+    /** List of Force objects, applied in order. Starts with a Gravity. */
     public ArrayList<Force>      F = new ArrayList<Force>();
 
+    /** F as an array, reused from step to step. */
+    private Force[] forces = new Force[0];
+
     private Grid grid = new Grid();
 
+    /** Obstacles and the box walls. */
+    private final Collisions collisions = new Collisions();
+
+    /** Emitters and sinks, which add and remove particles after every step. */
+    private final ArrayList<Emitter> emitters = new ArrayList<Emitter>();
+    private final ArrayList<Sink> sinks = new ArrayList<Sink>();
+    private Sink[] sinkArray = new Sink[0];
+
+    /** Per-chunk slots of the particles that ended the last step in a sink. */
+    private int[][] chunkSunk = new int[0][];
+    private int[] chunkSunkCount = new int[0];
+
+    /** All of chunkSunk, in ascending order. */
+    private int[] sunk = new int[0];
+
+    /** Largest particle speed at the end of the last step. */
+    private double maxSpeed = 0;
+
+    /** Per-chunk squared speed maxima of the last step. */
+    private double[] chunkMaxSpeedSq = new double[0];
+
+    /** Iteration bounds and density error tolerance of the constraint solve. */
+    private int minIterations = 1, maxIterations = Constants.DENSITY_IT;
+    private double tolerance = 0;
+
+    /** Convergence of the last step's constraint solve. */
+    private final SolverStats stats = new SolverStats();
+
+    /** Per-chunk density error maxima and sums. */
+    private double[] chunkMaxError = new double[0], chunkSumError = new double[0];
+
+    /** Single-precision constraint solver, or null to iterate in double. */
+    private VectorSolver vectorSolver = null;
+
+    /** Steps between spatial reorderings of the particle slots (0 = never). */
+    private int reorderInterval = Integer.getInteger("fluids.reorder", 20);
+    private int stepsSinceReorder = 0;
+    private final SpatialOrder spatialOrder = new SpatialOrder();
+
+    /** Profiler of every step, or null; the profile of the current step. */
+    private StepProfiler profiler = null;
+    private final StepProfile profile = new StepProfile();
+
+    /** Wall clock at the end of the last profiled phase. */
+    private long lapNs;
+
+    /** Per-chunk counts of particles pushed back into the box. */
+    private int[] chunkClamped = new int[0];
+
+    /** Threads that run the per-particle solver phases. */
+    private WorkerPool pool = new WorkerPool(Integer.getInteger("fluids.threads", 1));
+
+    /**
+     * Basic constructor, with Gravity as the only force. Uses the
+     * single-precision solver if the "fluids.float" system property is
+     * true.
+     */
+    public ParticleSystem()
+    {
+        F.add(new Gravity());
+        if (Boolean.getBoolean("fluids.float")) setSinglePrecision(true);
+    }
+
+    /**
+     * Sets the number of threads used by advanceTime(). Results are
+     * identical for any thread count. Defaults to the "fluids.threads"
+     * system property, or 1.
+     */
+    public synchronized void setThreads(int threads)
+    {
+        if (threads == pool.getThreads()) return;
+        pool.shutdown();
+        pool = new WorkerPool(threads);
+    }
+
+    /** Number of threads used by advanceTime(). */
+    public synchronized int getThreads() {
+        return pool.getThreads();
+    }
+
+    /**
+     * Largest particle speed at the end of the last step (0 after a
+     * reset). Used by TimeStepper to size adaptive steps.
+     */
+    public synchronized double getMaxSpeed() {
+        return maxSpeed;
+    }
+
     /**
-     * true iff prog has been initialized. This cannot be done in the
-     * constructor because it requires a GL2 reference.
+     * Sets how many lambda/delta p iterations each step runs. With a
+     * positive tolerance, iterations stop as soon as the largest
+     * density error (see SolverStats) is at most tolerance, but only
+     * after minIterations and never after maxIterations. With tolerance
+     * 0 (the default) every step runs exactly maxIterations, which
+     * defaults to Constants.DENSITY_IT.
      */
-    private boolean init = false;
+    public synchronized void setSolverIterations(int minIterations, int maxIterations, double tolerance)
+    {
+        if (minIterations < 0 || maxIterations < minIterations) {
+            throw new IllegalArgumentException("need 0 <= minIterations <= maxIterations: "+
+                                               minIterations+", "+maxIterations);
+        }
+        if (tolerance < 0) throw new IllegalArgumentException("negative tolerance: "+tolerance);
+        this.minIterations = minIterations;
+        this.maxIterations = maxIterations;
+        this.tolerance = tolerance;
+    }
 
-    /** Filename of vertex shader source. */
-    public static final String[] VERT_SOURCE = {"vert.glsl"};
+    /**
+     * Chooses between the double (default) and the single-precision
+     * SIMD (VectorSolver) constraint iterations. The latter needs the
+     * jdk.incubator.vector module.
+     */
+    public synchronized void setSinglePrecision(boolean single)
+    {
+        if (!single) {
+            vectorSolver = null;
+        } else if (vectorSolver == null) {
+            try {
+                vectorSolver = new VectorSolver(Constants.H);
+            } catch (LinkageError e) {
+                throw new UnsupportedOperationException(
+                    "single precision needs --add-modules jdk.incubator.vector", e);
+            }
+        }
+    }
 
-    /** Filename of fragment shader source. */
-    public static final String[] FRAG_SOURCE = {"frag.glsl"};
+    public synchronized boolean isSinglePrecision() {
+        return vectorSolver != null;
+    }
 
-    /** The shader program used by the particles. */
-    ShaderProgram prog;
+    /**
+     * Sets how many steps pass between reorderings of the particle
+     * slots along a Morton curve (see SpatialOrder); 0 disables them.
+     * Defaults to the "fluids.reorder" system property, or 20. Particle
+     * views and ids are not affected.
+     */
+    public synchronized void setReorderInterval(int steps)
+    {
+        if (steps < 0) throw new IllegalArgumentException("negative reorder interval: "+steps);
+        reorderInterval = steps;
+    }
 
+    public synchronized int getReorderInterval() {
+        return reorderInterval;
+    }
 
-    /** Basic constructor. */
-    public ParticleSystem() {}
+    /**
+     * Reorders the particle slots along a Morton curve now. Particle
+     * views find their particles by id, so they are not affected.
+     */
+    public synchronized void reorderParticles()
+    {
+        spatialOrder.reorder(S, pool);
+        stepsSinceReorder = 0;
+    }
 
     /**
-     * Set up the GLSL program. This requires that the current directory (i.e. the package in which
-     * this class resides) has a vertex and fragment shader.
+     * Attaches a profiler that times the phases of every following step
+     * and records its counters (see StepProfile), or detaches it (null).
+     * Steps are not timed while no profiler is attached.
      */
-    public synchronized void init(GL2 gl) {
-        if (init) return;
+    public synchronized void setProfiler(StepProfiler profiler) {
+        this.profiler = profiler;
+    }
 
-        prog = new ShaderProgram();
-        ShaderCode vert_code = ShaderCode.create(gl, GL2ES2.GL_VERTEX_SHADER, 1, this.getClass(), VERT_SOURCE, false);
-        ShaderCode frag_code = ShaderCode.create(gl, GL2ES2.GL_FRAGMENT_SHADER, 1, this.getClass(), FRAG_SOURCE, false);
-        if (!prog.add(gl, vert_code, System.err) || !prog.add(gl, frag_code, System.err)) {
-            System.err.println("WARNING: shader did not compile");
-            prog.init(gl); // Initialize empty program
-        } else {
-            prog.link(gl, System.err);
-        }
+    public synchronized StepProfiler getProfiler() {
+        return profiler;
+    }
+
+    /** Copies the convergence record of the last step into out. */
+    public synchronized void getSolverStats(SolverStats out) {
+        out.set(stats);
+    }
 
-        init = true;
+    /** Worker threads of the solver, for other bulk work such as loading. */
+    synchronized WorkerPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Sets the SPH kernels used by the solver, e.g. a tabulated Kernel
+     * for speed. Defaults to Kernel.EXACT.
+     */
+    public synchronized void setKernel(Kernel kernel)
+    {
+        S.Ni.kernel = kernel;
     }
 
     /** Adds a force object (until removed) */
@@ -78,15 +247,117 @@ public class ParticleSystem //implements Serializable
         F.remove(f);
     }
 
+    /** Adds an obstacle (until removed); see Collisions. */
+    public synchronized void addObstacle(Obstacle o) {
+        collisions.add(o);
+    }
+
+    public synchronized void removeObstacle(Obstacle o) {
+        collisions.remove(o);
+    }
+
+    /** Adds an emitter, which adds particles after every step (until removed). */
+    public synchronized void addEmitter(Emitter e) {
+        emitters.add(e);
+    }
+
+    public synchronized void removeEmitter(Emitter e) {
+        emitters.remove(e);
+    }
+
+    /** Adds a sink, which removes particles after every step (until removed). */
+    public synchronized void addSink(Sink s) {
+        sinks.add(s);
+    }
+
+    public synchronized void removeSink(Sink s) {
+        sinks.remove(s);
+    }
+
     /** Creates particle and adds it to the particle system.
      * @param p0 Undeformed/material position.
      * @return Reference to new Particle.
      */
     public synchronized Particle createParticle(Point3d p0)
     {
-        Particle newP = new Particle(p0);
-        P.add(newP);
-        return newP;
+        return view(S.add(p0.x, p0.y, p0.z));
+    }
+
+    /**
+     * Adds a particle at (x, y, z) moving with velocity (vx, vy, vz);
+     * used by Emitters.
+     */
+    void emitParticle(double x, double y, double z, double vx, double vy, double vz)
+    {
+        int i = S.add(x, y, z);
+        S.vx[i] = vx;
+        S.vy[i] = vy;
+        S.vz[i] = vz;
+    }
+
+    // Returns the view of the particle in slot i, creating it if needed.
+    private Particle view(int i)
+    {
+        int id = S.id[i];
+        while (P.size() <= id) P.add(null);
+        Particle p = P.get(id);
+        if (p == null) {
+            p = new Particle(S, id);
+            P.set(id, p);
+        }
+        return p;
+    }
+
+    // Marks the view of particle id, if any, as removed.
+    private void dropView(int id)
+    {
+        if (id >= P.size()) return;
+        Particle p = P.get(id);
+        if (p == null) return;
+        p.id = -1;
+        P.set(id, null);
+    }
+
+    // Marks all views as removed.
+    private void dropViews()
+    {
+        for (Particle p : P) {
+            if (p != null) p.id = -1;
+        }
+        P.clear();
+    }
+
+    /**
+     * Replaces all particles with count particles at rest, at the
+     * interleaved x, y, z positions in pos, and resets the time. Much
+     * faster than calling createParticle() for each of them.
+     */
+    public synchronized void setParticles(double[] pos, int count)
+    {
+        time = 0;
+        maxSpeed = 0;
+        clearParticles();
+        S.addAll(pos, count);
+    }
+
+    /**
+     * Replaces all particles with those of loaded, e.g. filled by a
+     * frame loader without holding the lock, and resets the time.
+     * loaded receives the old particles.
+     */
+    synchronized void setParticles(ParticleStore loaded)
+    {
+        time = 0;
+        maxSpeed = 0;
+        dropViews();
+        S.swap(loaded);
+    }
+
+    /** Removes all particles from the system. */
+    public synchronized void clearParticles()
+    {
+        S.clear();
+        dropViews();
     }
 
     /**
@@ -96,16 +367,84 @@ public class ParticleSystem //implements Serializable
      */
     public synchronized Particle getNearestParticle(Point3d x)
     {
-        Particle minP      = null;
+        int      nearest   = -1;
         double   minDistSq = Double.MAX_VALUE;
-        for(Particle particle : P) {
-            double distSq = x.distanceSquared(particle.x);
+        for(int i = 0; i < S.n; i++) {
+            double dx = x.x - S.px[i];
+            double dy = x.y - S.py[i];
+            double dz = x.z - S.pz[i];
+            double distSq = dx * dx + dy * dy + dz * dz;
             if(distSq < minDistSq) {
                 minDistSq = distSq;
-                minP = particle;
+                nearest = i;
             }
         }
-        return minP;
+        return (nearest >= 0) ? view(nearest) : null;
+    }
+
+    /**
+     * Removes the particles that the last step left in sinks. All
+     * removals of a step are done at once, so each freed slot is filled
+     * with one move from the end of the store; the spatial reordering
+     * then restores the order of the moved particles on its schedule.
+     */
+    private void removeSunk(int chunks)
+    {
+        int count = 0;
+        for (int c = 0; c < chunks; c++) count += chunkSunkCount[c];
+        if (count == 0) return;
+        if (sunk.length < count) sunk = new int[Math.max(count, 2 * sunk.length)];
+        count = 0;
+        for (int c = 0; c < chunks; c++) {
+            if (chunkSunkCount[c] == 0) continue;
+            System.arraycopy(chunkSunk[c], 0, sunk, count, chunkSunkCount[c]);
+            count += chunkSunkCount[c];
+        }
+
+        if (!P.isEmpty()) {
+            for (int k = 0; k < count; k++) dropView(S.id[sunk[k]]);
+        }
+        S.remove(sunk, count);
+    }
+
+    /**
+     * Copies the complete simulation state into c (see Checkpoint):
+     * particles, time, box, and the parameters of Stateful forces, of
+     * obstacles, emitters and sinks.
+     * Holds the lock for the duration of the copy only, so c can be
+     * written to disk while the simulation goes on.
+     */
+    public synchronized void saveCheckpoint(Checkpoint c)
+    {
+        c.copyFrom(S);
+        c.copyFrom(F, collisions.getObstacles(), emitters, sinks);
+        c.time = time;
+        c.rightWallLoc = rightWallLoc;
+        c.boxHeight = boxHeight;
+        c.boxDepth = boxDepth;
+        c.maxSpeed = maxSpeed;
+        c.stepsSinceReorder = stepsSinceReorder;
+    }
+
+    /**
+     * Replaces the simulation state with the one saved in c. The forces,
+     * obstacles, emitters and sinks must already be in place, and the solver configured,
+     * as when c was saved; stepping then continues exactly as the saved
+     * run did.
+     * @throws IllegalStateException if the forces, obstacles, emitters or
+     *         sinks do not match c.
+     */
+    public synchronized void loadCheckpoint(Checkpoint c)
+    {
+        c.copyTo(F, collisions.getObstacles(), emitters, sinks);
+        c.copyTo(S);
+        dropViews();
+        time = c.time;
+        rightWallLoc = c.rightWallLoc;
+        boxHeight = c.boxHeight;
+        boxDepth = c.boxDepth;
+        maxSpeed = c.maxSpeed;
+        stepsSinceReorder = c.stepsSinceReorder;
     }
 
     /** Moves all particles to undeformed/materials positions, and
@@ -113,13 +452,14 @@ public class ParticleSystem //implements Serializable
      * with simultaneous calls to advanceTime(). */
     public synchronized void reset()
     {
+        for(int i = 0; i < S.n; i++) {
+            S.reset(i);
+        }
         for(Particle p : P)  {
-            p.x.set(p.x0);
-            p.v.set(0,0,0);
-            p.f.set(0,0,0);
-            p.setHighlight(false);
+            if(p != null) p.setHighlight(false);
         }
         time = 0;
+        maxSpeed = 0;
     }
 
 
@@ -127,95 +467,300 @@ public class ParticleSystem //implements Serializable
      * Simple implementation of a first-order time step. 
      * TODO: Implement the "Position Based Fluids" integrator here
      */
-    public synchronized void advanceTime(double dt)
+    public synchronized void advanceTime(final double dt)
     {
-        Grid grid = new Grid();
-
-        /// Clear force accumulators:
-        for(Particle p : P)  {
-            p.f.set(0,0,0);
-            p.x_star.set(0, 0, 0);
+        final StepProfiler profiler = this.profiler;
+        if (profiler != null) {
+            profile.start(profiler.nextStep(), maxIterations);
+            lapNs = System.nanoTime();
         }
+        final long startNs = lapNs;
 
-        {/// Gather forces: (TODO)
-            for(Force force : F) {
-                force.applyForce();
-            }
-
-            // HACK: GRAVITY (NEED TO USE Force OBJECT)
-            for(Particle p : P) {
-                p.Ni.clear();
-                p.f.y -= p.m * 10.f;
-                p.v.scaleAdd(dt, p.f, p.v); //p.v += dt * p.f;
-                p.x_star.scaleAdd(dt, p.v, p.x);
-                p.x_star = Incompress.handleBoxCollisions(p.x_star, rightWallLoc);
-            }
-
-            for (Particle p : P) {
-                grid.addP2Grid(p);
-            }
+        if (reorderInterval > 0 && ++stepsSinceReorder >= reorderInterval) {
+            reorderParticles();
+        }
+        lap(StepProfile.REORDER);
+
+        final ParticleStore S = this.S;
+        final double rightWallLoc = this.rightWallLoc;
+        final double boxHeight = this.boxHeight;
+        final double boxDepth = this.boxDepth;
+        final int n = S.n;
+
+        final int chunks = pool.chunkCount(n);
+        if (chunkMaxError.length < chunks) {
+            chunkMaxError = new double[chunks];
+            chunkSumError = new double[chunks];
+            chunkMaxSpeedSq = new double[chunks];
+            chunkClamped = new int[chunks];
+        }
+        Arrays.fill(chunkClamped, 0, chunks, 0);
+
+        final int forceCount = F.size();
+        final Force[] forces = this.forces = F.toArray(this.forces);
+        final double t = time;
+        final Collisions collisions = this.collisions;
+        collisions.prepare(dt);
+
+        {/// Gather forces, chunk by chunk, and predict positions:
+            pool.forEachChunk(n, (chunk, from, to) -> {
+                for(int i = from; i < to; i++)  {
+                    S.fx[i] = S.fy[i] = S.fz[i] = 0;
+                }
+                for(int k = 0; k < forceCount; k++) {
+                    forces[k].applyForce(S, from, to, t, dt);
+                }
+
+                for(int i = from; i < to; i++) {
+                    S.vx[i] += dt * S.fx[i];
+                    S.vy[i] += dt * S.fy[i];
+                    S.vz[i] += dt * S.fz[i];
+                    S.sx[i] = S.px[i] + dt * S.vx[i];
+                    S.sy[i] = S.py[i] + dt * S.vy[i];
+                    S.sz[i] = S.pz[i] + dt * S.vz[i];
+                }
+                chunkClamped[chunk] += collisions.collide(S, from, to, rightWallLoc, boxHeight, boxDepth);
+            });
+            lap(StepProfile.PREDICT);
+
+            grid.build(S, pool);
+            lap(StepProfile.GRID);
         }
 
-        for (Particle p : P) {
-            p.Ni = grid.getNeighbors(p);
+        S.Ni.build(grid, S, pool);
+        lap(StepProfile.NEIGHBORS);
+
+        final VectorSolver vs = vectorSolver;
+        if (vs != null) {
+            vs.ensureCapacity(S);
+            pool.parallelFor(n, (from, to) -> vs.load(S, from, to));
+            lap(StepProfile.DENSITY);
         }
 
-        for (int i = 0; i < Constants.DENSITY_IT; i++) {
-            for (Particle p : P) {
-                // calculate lambda
-                p.lambda = Incompress.calcLambda(p);
+        stats.iterations = 0;
+        stats.converged = false;
+        for (int it = 0; it < maxIterations; it++) {
+            profile.iterations = it + 1;
+            pool.forEachChunk(n, (chunk, from, to) -> {
+                double max = 0, sum = 0;
+                if (vs != null) vs.calcLambda(S, from, to);
+                for(int i = from; i < to; i++) {
+                    // calculate lambda; also updates the density and the
+                    // pair kernels shared with the delta p pass
+                    if (vs == null) S.lambda[i] = Incompress.calcLambda(S, i);
+                    double error = Incompress.densityError(S, i);
+                    max = Math.max(max, error);
+                    sum += error;
+                }
+                chunkMaxError[chunk] = max;
+                chunkSumError[chunk] = sum;
+            });
+
+            reduceDensityError(chunks, n);
+            if (it == 0) {
+                stats.initialMaxError = stats.maxError;
+                stats.initialAvgError = stats.avgError;
             }
-
-            for (Particle p : P) {
-                //calculate delta p
-                p.dp = Incompress.calcDeltaP(p);
+            if (tolerance > 0 && it >= minIterations && stats.maxError <= tolerance) {
+                stats.converged = true;
+                lapIteration(it);
+                break;
             }
 
-            for (Particle p : P) {
-                p.x_star.add(p.dp);
-                p.x_star = Incompress.handleBoxCollisions(p.x_star, rightWallLoc);
+            if (vs != null) {
+                // delta p only reads lambdas and pair kernels, so each
+                // chunk can move its particles right away
+                pool.forEachChunk(n, (chunk, from, to) -> {
+                    vs.calcDeltaP(S, from, to);
+                    if (!collisions.hasObstacles()) {
+                        chunkClamped[chunk] += vs.applyDeltaP(from, to, rightWallLoc, boxHeight, boxDepth);
+                    } else {
+                        // obstacles work on the double positions, and
+                        // collide() also clamps them to the box
+                        vs.applyDeltaP(from, to);
+                        vs.store(S, from, to);
+                        chunkClamped[chunk] += collisions.collide(S, from, to, rightWallLoc, boxHeight, boxDepth);
+                        vs.loadPositions(S, from, to);
+                    }
+                });
+                stats.iterations++;
+                lapIteration(it);
+                continue;
             }
 
+            pool.parallelFor(n, (from, to) -> {
+                for(int i = from; i < to; i++) {
+                    //calculate delta p
+                    Incompress.calcDeltaP(S, i);
+                }
+            });
+
+            pool.forEachChunk(n, (chunk, from, to) -> {
+                for(int i = from; i < to; i++) {
+                    S.sx[i] += S.dpx[i];
+                    S.sy[i] += S.dpy[i];
+                    S.sz[i] += S.dpz[i];
+                }
+                chunkClamped[chunk] += collisions.collide(S, from, to, rightWallLoc, boxHeight, boxDepth);
+            });
+
+            stats.iterations++;
+            lapIteration(it);
+        }
+        if (vs != null) {
+            pool.parallelFor(n, (from, to) -> vs.store(S, from, to));
+            lap(StepProfile.DENSITY);
         }
-
 
         /// TIME-STEP: (Symplectic Euler for now):
-        for (Particle p : P) {
-            p.omega = Vorticity.calcVorticity(p);
+        pool.forEachChunk(n, (chunk, from, to) -> {
+            double max = 0, sum = 0;
+            for(int i = from; i < to; i++) {
+                // refreshes the pair kernels read by the vorticity passes
+                S.density[i] = Incompress.updateDensity(S, i);
+                Vorticity.calcVorticity(S, i);
+                double error = Incompress.densityError(S, i);
+                max = Math.max(max, error);
+                sum += error;
+            }
+            chunkMaxError[chunk] = max;
+            chunkSumError[chunk] = sum;
+        });
+        reduceDensityError(chunks, n);
+        if (maxIterations == 0) {
+            stats.initialMaxError = stats.maxError;
+            stats.initialAvgError = stats.avgError;
         }
+        lap(StepProfile.VORTICITY);
 
-        for (Particle p : P) {
-            Vector3d v = new Vector3d(p.x_star);
-            v.sub(p.x);
-            v.scale(1 / dt);
-            p.v = v;
-            p.v.add(Vorticity.calcFVort(p));
-            p.v.add(Viscosity.XPSHViscosity(p));
+        pool.parallelFor(n, (from, to) -> {
+            for(int i = from; i < to; i++) {
+                S.vx[i] = (S.sx[i] - S.px[i]) * (1 / dt);
+                S.vy[i] = (S.sy[i] - S.py[i]) * (1 / dt);
+                S.vz[i] = (S.sz[i] - S.pz[i]) * (1 / dt);
+            }
+        });
+        lap(StepProfile.COMMIT);
+
+        // Vorticity confinement and viscosity read the neighbors'
+        // velocities, so the corrections are gathered into the (now
+        // unused) delta p arrays before any velocity is modified.
+        pool.parallelFor(n, (from, to) -> {
+            Vector3d fVort = new Vector3d();
+            for(int i = from; i < to; i++) {
+                Vorticity.calcFVort(S, i, fVort);
+                S.dpx[i] = fVort.x;
+                S.dpy[i] = fVort.y;
+                S.dpz[i] = fVort.z;
+            }
+        });
+        lap(StepProfile.VORTICITY);
+
+        pool.parallelFor(n, (from, to) -> {
+            Vector3d visc = new Vector3d();
+            for(int i = from; i < to; i++) {
+                Viscosity.XPSHViscosity(S, i, visc);
+                S.dpx[i] += visc.x;
+                S.dpy[i] += visc.y;
+                S.dpz[i] += visc.z;
+            }
+        });
+        lap(StepProfile.VISCOSITY);
+
+        final int sinkCount = sinks.size();
+        final Sink[] sinkArray = this.sinkArray = sinks.toArray(this.sinkArray);
+        if (chunkSunk.length < chunks) {
+            chunkSunk = Arrays.copyOf(chunkSunk, chunks);
+            chunkSunkCount = new int[chunks];
+        }
+        pool.forEachChunk(n, (chunk, from, to) -> {
+            double maxSq = 0;
+            for(int i = from; i < to; i++) {
+                S.vx[i] += S.dpx[i];
+                S.vy[i] += S.dpy[i];
+                S.vz[i] += S.dpz[i];
+                maxSq = Math.max(maxSq, S.vx[i] * S.vx[i] + S.vy[i] * S.vy[i] + S.vz[i] * S.vz[i]);
+
+                S.px[i] = S.sx[i];
+                S.py[i] = S.sy[i];
+                S.pz[i] = S.sz[i];
+            }
+            chunkMaxSpeedSq[chunk] = maxSq;
+
+            int count = 0;
+            if (sinkCount > 0) {
+                int[] sunk = chunkSunk[chunk];
+                for(int i = from; i < to; i++) {
+                    for(int k = 0; k < sinkCount; k++) {
+                        if (!sinkArray[k].contains(S.px[i], S.py[i], S.pz[i])) continue;
+                        if (sunk == null || count == sunk.length) {
+                            sunk = chunkSunk[chunk] = (sunk == null)
+                                ? new int[Math.max(16, to - from)] : Arrays.copyOf(sunk, 2 * sunk.length);
+                        }
+                        sunk[count++] = i;
+                        break;
+                    }
+                }
+            }
+            chunkSunkCount[chunk] = count;
+        });
+
+        double maxSq = 0;
+        for (int c = 0; c < chunks; c++) maxSq = Math.max(maxSq, chunkMaxSpeedSq[c]);
+        maxSpeed = Math.sqrt(maxSq);
 
-            p.x = new Point3d(p.x_star);
+        if (sinkCount > 0) removeSunk(chunks);
+        for (int k = 0; k < emitters.size(); k++) {
+            Emitter e = emitters.get(k);
+            if (e.emit(this, dt) > 0) maxSpeed = Math.max(maxSpeed, e.getSpeed());
         }
 
         time += dt;
         grid.clearGrid();
+        lap(StepProfile.COMMIT);
+
+        if (profiler != null) {
+            profile.totalNs = lapNs - startNs;
+            profile.time = time;
+            profile.dt = dt;
+            profile.particles = n;
+            profile.maxDensityError = stats.maxError;
+            for (int c = 0; c < chunks; c++) profile.clamped += chunkClamped[c];
+            int most = 0;
+            for (int i = 0; i < n; i++) most = Math.max(most, S.Ni.count(i));
+            profile.avgNeighbors = (n > 0) ? S.Ni.pairs() / (double) n : 0;
+            profile.maxNeighbors = most;
+            profiler.record(profile);
+        }
     }
 
-    /**
-     * Displays Particle and Force objects. Modify how you like.
-     */
-    public synchronized void display(GL2 gl)
+    // Adds the wall time since the last lap to phase of the step profile.
+    private void lap(int phase)
     {
-        for(Force force : F) {
-            force.display(gl);
-        }
-
-        if(!init) init(gl);
+        if (profiler == null) return;
+        long now = System.nanoTime();
+        profile.phaseNs[phase] += now - lapNs;
+        lapNs = now;
+    }
 
-        prog.useProgram(gl, true);
+    // Records density iteration it, which ends now.
+    private void lapIteration(int it)
+    {
+        if (profiler == null) return;
+        long before = profile.phaseNs[StepProfile.DENSITY];
+        lap(StepProfile.DENSITY);
+        profile.iterationNs[it] = profile.phaseNs[StepProfile.DENSITY] - before;
+    }
 
-        for(Particle particle : P) {
-            particle.display(gl);
+    // Combines the per-chunk density errors into stats.maxError/avgError.
+    private void reduceDensityError(int chunks, int n)
+    {
+        double max = 0, sum = 0;
+        for (int c = 0; c < chunks; c++) {
+            max = Math.max(max, chunkMaxError[c]);
+            sum += chunkSumError[c];
         }
-
-        prog.useProgram(gl, false);
+        stats.maxError = max;
+        stats.avgError = (n > 0) ? sum / n : 0;
     }
 }
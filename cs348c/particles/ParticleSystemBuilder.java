@@ -11,7 +11,6 @@ import javax.vecmath.*;
 import com.jogamp.opengl.*;
 import com.jogamp.opengl.awt.GLCanvas;
 import com.jogamp.opengl.util.Animator;
-import com.jogamp.opengl.util.GLReadBufferUtil;
 import com.jogamp.opengl.glu.*;
 
 import com.jogamp.opengl.util.*;
@@ -22,22 +21,37 @@ import com.jogamp.opengl.util.*;
  * main() entry point class that initializes ParticleSystem, OpenGL
  * rendering, and GUI that manages GUI/mouse events.
  *
- * Spacebar toggles simulation advance.
+ * Spacebar toggles simulation advance. 'A' toggles adaptive time
+ * stepping; '+'/'-' change the number of substeps per frame when it is off.
  *
  * @author Doug James, January 2007
  * @author Eston Schweickart, February 2014
  */
 public class ParticleSystemBuilder implements GLEventListener
 {
-    private FrameExporter frameExporter;
+    private volatile FrameExporter frameExporter;
 
-    private static int N_STEPS_PER_FRAME = 500;
+    /**
+     * Held by the simulation thread while it writes an archive frame,
+     * and while an exporter is detached, so a detached archive is never
+     * written to after it was closed.
+     */
+    private final Object exporterLock = new Object();
+
+    /** Image exporter that was toggled off, to be finished on the GL thread. */
+    private volatile FrameExporter retiredExporter;
 
     private GLU glu;
 
-    /** Default graphics time step size. */
+    /** Simulation time per displayed frame. */
     public static final double DT = 0.01;
 
+    /** Title of the main window, followed by the time stepping status. */
+    private static final String TITLE = "CS567 Particle System Builder";
+
+    /** Substeps of the last frame shown in the title. */
+    private volatile int shownSubsteps = -1;
+
     /** Main window frame. */
     JFrame frame = null;
 
@@ -46,6 +60,12 @@ public class ParticleSystemBuilder implements GLEventListener
     /** The single ParticleSystem reference. */
     ParticleSystem PS;
 
+    /** Draws PS. */
+    ParticleRenderer renderer;
+
+    /** Advances PS and publishes snapshots for the renderer. */
+    SimulationThread simulation;
+
     /** Object that handles all GUI and user interactions of building
      * Task objects, and simulation. */
     BuilderGUI     gui;
@@ -63,6 +83,8 @@ public class ParticleSystemBuilder implements GLEventListener
     ParticleSystemBuilder()
     {
         PS = new ParticleSystem();
+        renderer = new ParticleRenderer(PS);
+        simulation = new SimulationThread(PS, DT);
     }
 
     /**
@@ -74,7 +96,7 @@ public class ParticleSystemBuilder implements GLEventListener
 
         gui   = new BuilderGUI();
 
-        frame = new JFrame("CS567 Particle System Builder");
+        frame = new JFrame(TITLE);
         GLProfile glp = GLProfile.getDefault();
         GLCapabilities glc = new GLCapabilities(glp);
         GLCanvas canvas = new GLCanvas(glc);
@@ -85,6 +107,18 @@ public class ParticleSystemBuilder implements GLEventListener
         canvas.addMouseMotionListener(gui);
         canvas.addKeyListener(gui);
 
+        // Archive frames are queued on the simulation thread, once per frame.
+        simulation.setStepListener(new SimulationThread.StepListener() {
+            public void stepCompleted(ParticleSystem PS) {
+                synchronized(exporterLock) {
+                    FrameExporter exporter = frameExporter;
+                    if(exporter != null && !exporter.image) exporter.writeFrame(null);
+                }
+                showStepping();
+            }
+        });
+        simulation.start();
+
         final Animator animator = new Animator(canvas);
         frame.addWindowListener(new WindowAdapter() {
             public void windowClosing(WindowEvent e) {
@@ -94,6 +128,9 @@ public class ParticleSystemBuilder implements GLEventListener
                 new Thread(new Runnable() {
                     public void run() {
                         animator.stop();
+                        simulation.shutdown();
+                        FrameExporter exporter = frameExporter;
+                        if(exporter != null) exporter.close();
                         System.exit(0);
                     }
                 }).start();
@@ -107,6 +144,22 @@ public class ParticleSystemBuilder implements GLEventListener
         animator.start();
     }
 
+    /** Shows the substeps per frame in the window title when they change. */
+    private void showStepping()
+    {
+        TimeStepper stepper = simulation.getStepper();
+        final int substeps = stepper.getLastSubsteps();
+        if(substeps == shownSubsteps) return;
+        shownSubsteps = substeps;
+        final String title = TITLE+"  ["+(stepper.isAdaptive() ? "adaptive" : "fixed")+
+            ", "+substeps+" substeps/frame, dt="+(float)stepper.getLastMinDt()+"]";
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                frame.setTitle(title);
+            }
+        });
+    }
+
     /** GLEventListener implementation: Initializes JOGL renderer. */
     public void init(GLAutoDrawable drawable)
     {
@@ -240,31 +293,40 @@ public class ParticleSystemBuilder implements GLEventListener
             task = null; // Set default task here
         }
 
-        /** Simulate then display particle system and any builder
+        /** Hand the simulation settings to the simulation thread,
+         * then display the latest particle snapshot and any builder
          * adornments. */
         void simulateAndDisplayScene(GL2 gl)
         {
-            /// TODO: OVERRIDE THIS INTEGRATOR (Doesn't use Force objects properly)
-            if(simulate) {
-                PS.rightWallLoc = rightWallLoc;
-                if(true) {//ONE EULER STEP
-                    PS.advanceTime(DT);
-                }
-                else {//MULTIPLE STEPS FOR STABILITY WITH FORWARD EULER (UGH!)
-                    int nSteps = N_STEPS_PER_FRAME;
-                    double dt  = DT/(double)nSteps;
-                    for(int k=0; k<nSteps; k++) {
-                        PS.advanceTime(dt);
-                    }
-                }
-
-            }
+            // Time stepping happens on the SimulationThread.
+            simulation.setRightWallLoc(rightWallLoc);
+            simulation.setSimulate(simulate);
 
             // Draw particles, forces, etc.
-            PS.display(gl);
+            FrameSnapshot snapshot = simulation.getSnapshots().latest();
+            renderer.display(gl, snapshot);
+
+            // Save each simulation frame once; the simulation thread
+            // waits for the capture while images are exported.
+            FrameExporter exporter = frameExporter;
+            if(exporter != null && exporter.image && snapshot.stepped &&
+               snapshot.sequence > exporter.lastSequence) {
+                exporter.writeFrame(gl);
+                exporter.lastSequence = snapshot.sequence;
+                simulation.frameCaptured(snapshot.sequence);
+            }
 
-            if(simulate && frameExporter != null) {
-                frameExporter.writeFrame(gl);
+            // Flush the PBOs of a stopped image exporter here, where the
+            // GL context is current; wait for the PNGs on another thread.
+            final FrameExporter retired = retiredExporter;
+            if(retired != null) {
+                retiredExporter = null;
+                retired.finish(gl);
+                new Thread(new Runnable() {
+                    public void run() {
+                        retired.close();
+                    }
+                }).start();
             }
 
             // Display task if any
@@ -358,26 +420,38 @@ public class ParticleSystemBuilder implements GLEventListener
                     taskSelector.resetToRest(); //sets task=null;
                     break;
                 case KeyEvent.VK_E:
-                    frameExporter = ((frameExporter==null) ? (new FrameExporter()) : null);
+                    toggleFrameExporter(false);
                     System.out.println("'e' : frameExporter = "+frameExporter);
                     break;
                 case KeyEvent.VK_I:
-                    frameExporter = ((frameExporter==null) ? (new FrameExporter(true)) : null);
+                    toggleFrameExporter(true);
 
                     System.out.println("'i' : frameExporter = "+frameExporter);
                     break;
                 case KeyEvent.VK_L:
                     loadFrameFromFile();
                     break;
-                case KeyEvent.VK_EQUALS:
-                    N_STEPS_PER_FRAME = Math.max((int)(1.05*N_STEPS_PER_FRAME), N_STEPS_PER_FRAME+1);
-                    System.out.println("N_STEPS_PER_FRAME="+N_STEPS_PER_FRAME+";  dt="+(DT/(double)N_STEPS_PER_FRAME));
+                case KeyEvent.VK_A: {
+                    TimeStepper stepper = simulation.getStepper();
+                    stepper.setAdaptive(!stepper.isAdaptive());
+                    shownSubsteps = -1;
+                    System.out.println("'a' : adaptive time stepping = "+stepper.isAdaptive());
                     break;
-                case KeyEvent.VK_MINUS:
-                    int n = Math.min((int)(0.95*N_STEPS_PER_FRAME), N_STEPS_PER_FRAME-1);
-                    N_STEPS_PER_FRAME = Math.max(1, n);
-                    System.out.println("N_STEPS_PER_FRAME="+N_STEPS_PER_FRAME+";  dt="+(DT/(double)N_STEPS_PER_FRAME));
+                }
+                case KeyEvent.VK_EQUALS: {
+                    TimeStepper stepper = simulation.getStepper();
+                    int n = stepper.getFixedSubsteps();
+                    stepper.setFixedSubsteps(Math.max((int)(1.05*n), n+1));
+                    System.out.println("substeps per frame="+stepper.getFixedSubsteps()+";  dt="+(DT/stepper.getFixedSubsteps()));
                     break;
+                }
+                case KeyEvent.VK_MINUS: {
+                    TimeStepper stepper = simulation.getStepper();
+                    int n = stepper.getFixedSubsteps();
+                    stepper.setFixedSubsteps(Math.max(1, Math.min((int)(0.95*n), n-1)));
+                    System.out.println("substeps per frame="+stepper.getFixedSubsteps()+";  dt="+(DT/stepper.getFixedSubsteps()));
+                    break;
+                }
                 case KeyEvent.VK_LEFT:
                     Vector2d vec = new Vector2d(eyePos.x-targetPos.x, eyePos.z-targetPos.z);
                     eyePos.x = vec.x*Constants.CAM_COS_THETA - vec.y*Constants.CAM_SIN_THETA + targetPos.x;
@@ -467,17 +541,7 @@ public class ParticleSystemBuilder implements GLEventListener
         }
 
         try {
-            java.util.Scanner s = new java.util.Scanner(file);
-            int numParticles = s.nextInt();
-            PS.reset();
-            PS.P.clear();
-            for(int i=0; i<numParticles; i++) {
-                double x = s.nextDouble();
-                double y = s.nextDouble();
-                double z = s.nextDouble();
-                PS.createParticle(new Point3d(x, y, z));
-            }
-            s.close();
+            FrameIO.loadFrame(PS, file);
 
         } catch(Exception e) {
             e.printStackTrace();
@@ -485,17 +549,43 @@ public class ParticleSystemBuilder implements GLEventListener
         }
     }
 
+    /**
+     * Starts a new FrameExporter if none is running, otherwise stops
+     * (and closes) the running one.
+     */
+    private void toggleFrameExporter(boolean image)
+    {
+        FrameExporter exporter;
+        synchronized(exporterLock) {
+            exporter = frameExporter;
+            frameExporter = null;
+        }
+        if(exporter != null) {
+            // detached: the simulation thread no longer writes to it
+            simulation.setWaitForCapture(false);
+            if(exporter.image) retiredExporter = exporter;
+            else exporter.close();
+            return;
+        }
+        try {
+            frameExporter = new FrameExporter(image);
+            simulation.setWaitForCapture(image);
+        } catch(Exception e) {
+            e.printStackTrace();
+            System.err.println("OOPS: "+e);
+        }
+    }
+
     /// Used by the FrameExporter class
     private static int exportId = -1;
 
     /**
-     * A class that either writes the current position of all particles to a text file,
-     * or outputs a png of the current window. Toggle the image boolean to switch modes.
-     *
-     * Text file specification:
-     * The file's first line is an integer N denoting the number of particles in the system.
-     * N lines follow, each with 3 floating point numbers describing the points'
-     * x, y, and z coordinates.
+     * A class that either appends the state of all particles to a binary
+     * FrameArchive (frames/exportN.pbfa), or outputs a png of the current
+     * window. Toggle the image boolean to switch modes. Archive frames are
+     * written on a background thread; use "java cs348c.particles.FrameArchive"
+     * to extract them as text frames. PNGs are read back and encoded
+     * asynchronously by a FrameCapture.
      *
      * WARNING: the directory "./frames/" must exist for this class to work properly.
      */
@@ -504,41 +594,85 @@ public class ParticleSystemBuilder implements GLEventListener
         public boolean image = false;
         private int nFrames  = 0;
 
-        FrameExporter()  {
-            exportId += 1;
-        }
+        /** Archive writer, or null in image mode. */
+        private AsyncArchiveWriter archive = null;
+        private String archiveName = null;
+
+        /** PNG capture pipeline, or null in archive mode. */
+        private FrameCapture capture = null;
 
-        FrameExporter(boolean image) {
+        /** Sequence number of the last snapshot saved in image mode. */
+        long lastSequence = 0;
+
+        FrameExporter(boolean image) throws java.io.IOException {
             this.image = image;
             exportId += 1;
+            if (!image) {
+                archiveName = "frames/export"+exportId+FrameArchive.EXTENSION;/// Bug: DIRECTORY MUST EXIST!
+                java.io.File file = new java.io.File(archiveName);
+                if(file.exists()) System.out.println("WARNING: APPENDING TO PREVIOUS FILE: "+archiveName);
+                archive = new AsyncArchiveWriter(file, FrameArchive.DENSITY | FrameArchive.VELOCITY);
+            }
+            else {
+                capture = new FrameCapture(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+            }
+        }
+
+        /** Queues the frames still in flight on the GPU. Must be
+         * called on the GL thread. */
+        void finish(GL2 gl)
+        {
+            if (capture == null) return;
+            try {
+                capture.finish(gl);
+            } catch(Exception e) {
+                e.printStackTrace();
+                System.out.println("OOPS: "+e);
+            }
         }
 
+        /** Waits until all queued frames are written, and closes the
+         * archive, if any. */
+        void close()
+        {
+            try {
+                if (archive != null) archive.close();
+                if (capture != null) capture.close();
+                System.out.println("Wrote "+nFrames+" frames"+
+                                   (archive != null ? " to "+archiveName : ""));
+            } catch(Exception e) {
+                e.printStackTrace();
+                System.out.println("OOPS: "+e);
+            }
+        }
+
+        /** Writes the next frame. gl is only used in image mode,
+         * and may be null otherwise. */
         void writeFrame(GL2 gl)
         {
+            if (!image) {
+                try {
+                    archive.submit(PS);
+                } catch(Exception e) {
+                    e.printStackTrace();
+                    System.out.println("OOPS: "+e);
+                }
+                nFrames += 1;
+                return;
+            }
+
             long   timeNS   = -System.nanoTime();
             String number   = Utils.getPaddedNumber(nFrames, 5, "0");
-            String filename = "frames/export"+exportId+"-"+number+
-                (image ? ".png" : ".txt");/// Bug: DIRECTORY MUST EXIST!
+            String filename = "frames/export"+exportId+"-"+number+".png";/// Bug: DIRECTORY MUST EXIST!
 
             try{
                 java.io.File   file     = new java.io.File(filename);
                 if(file.exists()) System.out.println("WARNING: OVERWRITING PREVIOUS FILE: "+filename);
 
-                if (image) {
-                    GLReadBufferUtil rbu = new GLReadBufferUtil(false, false);
-                    rbu.readPixels(gl, false);
-                    rbu.write(file);
-                } else {
-                    java.io.BufferedWriter output = new java.io.BufferedWriter(new java.io.FileWriter(file));
-
-                    output.write(""+PS.P.size()+"\n");
-                    for (Particle p : PS.P) {
-                        output.write(""+p.x.x+" "+p.x.y+" "+p.x.z+"\n");
-                    }
-                    output.close();
-                }
+                capture.capture(gl, file);
 
-                System.out.println((timeNS/1000000)+"ms:  Wrote frame: "+filename);
+                timeNS += System.nanoTime();
+                System.out.println((timeNS/1000000)+"ms:  Captured frame: "+filename);
 
             }catch(Exception e) {
                 e.printStackTrace();
@@ -0,0 +1,54 @@
+package cs348c.particles;
+
+/**
+ * Half-space obstacle: everything behind the plane through the position
+ * with the given normal is solid, and particles there are pushed back
+ * onto the plane along the normal.
+ */
+public class PlaneObstacle extends Obstacle
+{
+    /** Unit normal, pointing out of the solid. */
+    private final double nx, ny, nz;
+
+    public PlaneObstacle(double x, double y, double z, double nx, double ny, double nz)
+    {
+        super(x, y, z);
+        double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (!(length > 0)) throw new IllegalArgumentException("plane normal must be nonzero");
+        this.nx = nx / length;
+        this.ny = ny / length;
+        this.nz = nz / length;
+    }
+
+    /**
+     * Infinite, except on the normal's axis when the plane is
+     * axis-aligned: the solid side then ends at the plane.
+     */
+    public void getBounds(double[] b, int offset)
+    {
+        double inf = Double.POSITIVE_INFINITY;
+        b[offset]     = (nx == -1) ? x : -inf;
+        b[offset + 1] = (ny == -1) ? y : -inf;
+        b[offset + 2] = (nz == -1) ? z : -inf;
+        b[offset + 3] = (nx == 1) ? x : inf;
+        b[offset + 4] = (ny == 1) ? y : inf;
+        b[offset + 5] = (nz == 1) ? z : inf;
+    }
+
+    public int collide(ParticleStore s, int from, int to)
+    {
+        double nx = this.nx, ny = this.ny, nz = this.nz;
+        double d = nx * x + ny * y + nz * z;
+        double[] sx = s.sx, sy = s.sy, sz = s.sz;
+        int moved = 0;
+        for (int i = from; i < to; i++) {
+            double depth = d - (nx * sx[i] + ny * sy[i] + nz * sz[i]);
+            if (depth <= 0) continue;
+            sx[i] += depth * nx;
+            sy[i] += depth * ny;
+            sz[i] += depth * nz;
+            moved++;
+        }
+        return moved;
+    }
+}
@@ -0,0 +1,160 @@
+package cs348c.particles;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * Obstacle of arbitrary shape given by a signed distance field sampled
+ * on a voxel grid, negative inside the solid. The position is the grid's
+ * corner of smallest coordinates. Particles where the trilinearly
+ * interpolated distance is negative are pushed along its gradient by
+ * that distance. Outside the grid nothing is solid.
+ *
+ * File layout (all values little-endian):
+ *
+ *   int    magic "PBFS"
+ *   int    version (1)
+ *   int    nx, ny, nz, the number of samples along each axis (at least 2)
+ *   int    reserved
+ *   double spacing of the samples
+ *   double x, y, z of the first sample
+ *   float  distances (nx * ny * nz), x fastest, then y, then z
+ */
+public class SdfObstacle extends Obstacle
+{
+    /** File name extension of distance fields. */
+    public static final String EXTENSION = ".pbfs";
+
+    private static final int MAGIC       = 0x53464250; // "PBFS"
+    private static final int VERSION     = 1;
+    private static final int HEADER_SIZE = 56;
+
+    private final int nx, ny, nz;
+    private final double spacing;
+    private final float[] phi;
+
+    /**
+     * Creates an obstacle from distances sampled at (x, y, z) + spacing *
+     * (i, j, k), stored at phi[i + nx * (j + ny * k)].
+     */
+    public SdfObstacle(double x, double y, double z, int nx, int ny, int nz, double spacing, float[] phi)
+    {
+        super(x, y, z);
+        if (nx < 2 || ny < 2 || nz < 2) throw new IllegalArgumentException("need at least 2 samples per axis");
+        if (!(spacing > 0)) throw new IllegalArgumentException("spacing must be positive: "+spacing);
+        if (phi.length != (long) nx * ny * nz) throw new IllegalArgumentException("need "+nx+"x"+ny+"x"+nz+" samples");
+        this.nx = nx;
+        this.ny = ny;
+        this.nz = nz;
+        this.spacing = spacing;
+        this.phi = phi;
+    }
+
+    /** Reads a distance field written by write(). */
+    public static SdfObstacle read(File file) throws IOException
+    {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer h = readBytes(channel, 0, HEADER_SIZE, file);
+            if (h.getInt() != MAGIC) throw new IOException(file+" is not a distance field");
+            int version = h.getInt();
+            if (version != VERSION) throw new IOException(file+": unsupported version "+version);
+            int nx = h.getInt(), ny = h.getInt(), nz = h.getInt();
+            h.getInt();
+            double spacing = h.getDouble();
+            double x = h.getDouble(), y = h.getDouble(), z = h.getDouble();
+            long count = (long) nx * ny * nz;
+            if (nx < 2 || ny < 2 || nz < 2 || 4 * count > Integer.MAX_VALUE) {
+                throw new IOException(file+": bad grid size "+nx+"x"+ny+"x"+nz);
+            }
+            float[] phi = new float[(int) count];
+            readBytes(channel, HEADER_SIZE, 4 * (int) count, file).asFloatBuffer().get(phi);
+            return new SdfObstacle(x, y, z, nx, ny, nz, spacing, phi);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /** Writes the distance field, at the current position, to file. */
+    public void write(File file) throws IOException
+    {
+        ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE + 4 * phi.length).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(MAGIC).putInt(VERSION).putInt(nx).putInt(ny).putInt(nz).putInt(0);
+        b.putDouble(spacing).putDouble(x).putDouble(y).putDouble(z);
+        b.asFloatBuffer().put(phi);
+        b.position(b.capacity());
+        b.flip();
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                               StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            while (b.hasRemaining()) channel.write(b);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static ByteBuffer readBytes(FileChannel channel, long offset, int size, File file) throws IOException
+    {
+        ByteBuffer b = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (b.hasRemaining()) {
+            if (channel.read(b, offset + b.position()) < 0) throw new EOFException(file+": truncated");
+        }
+        b.flip();
+        return b;
+    }
+
+    public void getBounds(double[] b, int offset)
+    {
+        b[offset]     = x;
+        b[offset + 1] = y;
+        b[offset + 2] = z;
+        b[offset + 3] = x + (nx - 1) * spacing;
+        b[offset + 4] = y + (ny - 1) * spacing;
+        b[offset + 5] = z + (nz - 1) * spacing;
+    }
+
+    public int collide(ParticleStore s, int from, int to)
+    {
+        double ox = x, oy = y, oz = z, inv = 1 / spacing;
+        int nx = this.nx, ny = this.ny, nz = this.nz, plane = nx * ny;
+        float[] phi = this.phi;
+        double[] sx = s.sx, sy = s.sy, sz = s.sz;
+        int moved = 0;
+        for (int i = from; i < to; i++) {
+            double u = (sx[i] - ox) * inv, v = (sy[i] - oy) * inv, w = (sz[i] - oz) * inv;
+            if (!(u >= 0 && v >= 0 && w >= 0 && u <= nx - 1 && v <= ny - 1 && w <= nz - 1)) continue;
+
+            // cell of the sample, the last one on the far faces
+            int a = Math.min((int) u, nx - 2), b = Math.min((int) v, ny - 2), c = Math.min((int) w, nz - 2);
+            double fu = u - a, fv = v - b, fw = w - c;
+            int k = a + nx * b + plane * c;
+            double p000 = phi[k],              p100 = phi[k + 1];
+            double p010 = phi[k + nx],         p110 = phi[k + nx + 1];
+            double p001 = phi[k + plane],      p101 = phi[k + plane + 1];
+            double p011 = phi[k + plane + nx], p111 = phi[k + plane + nx + 1];
+
+            // interpolate along x, then y, then z
+            double p00 = p000 + fu * (p100 - p000), p10 = p010 + fu * (p110 - p010);
+            double p01 = p001 + fu * (p101 - p001), p11 = p011 + fu * (p111 - p011);
+            double p0 = p00 + fv * (p10 - p00), p1 = p01 + fv * (p11 - p01);
+            double d = p0 + fw * (p1 - p0);
+            if (d >= 0) continue;
+
+            // gradient of the trilinear interpolant
+            double d00 = p100 - p000, d10 = p110 - p010, d01 = p101 - p001, d11 = p111 - p011;
+            double gx = (1 - fw) * (d00 + fv * (d10 - d00)) + fw * (d01 + fv * (d11 - d01));
+            double gy = (1 - fw) * (p10 - p00) + fw * (p11 - p01);
+            double gz = p1 - p0;
+            double g = Math.sqrt(gx * gx + gy * gy + gz * gz);
+            if (g == 0) continue;
+            double scale = -d / g;
+            sx[i] += gx * scale;
+            sy[i] += gy * scale;
+            sz[i] += gz * scale;
+            moved++;
+        }
+        return moved;
+    }
+}
@@ -0,0 +1,145 @@
+package cs348c.particles;
+
+/**
+ * Advances a ParticleSystem on its own thread, decoupled from the
+ * render thread, one TimeStepper frame at a time. After every frame the
+ * state is published into a SnapshotBuffer; the renderer draws the latest snapshot without taking
+ * the solver's lock, so a slow step no longer drops frames and a slow
+ * draw no longer stalls the solver.
+ */
+public class SimulationThread extends Thread
+{
+    /** Called on the simulation thread after each completed frame. */
+    public interface StepListener {
+        void stepCompleted(ParticleSystem PS);
+    }
+
+    /** How long to sleep between snapshots while paused. */
+    private static final long IDLE_MS = 15;
+
+    private final ParticleSystem PS;
+
+    private final SnapshotBuffer snapshots = new SnapshotBuffer();
+
+    private volatile boolean simulate = false;
+
+    private volatile boolean running = true;
+
+    private volatile double rightWallLoc = 1.;
+
+    private final TimeStepper stepper;
+
+    private volatile StepListener listener = null;
+
+    /**
+     * While true, the thread waits after every frame until the snapshot
+     * of that frame is reported captured by frameCaptured().
+     */
+    private volatile boolean waitForCapture = false;
+
+    /** Sequence number of the last captured snapshot; guarded by captureLock. */
+    private long captured = 0;
+    private final Object captureLock = new Object();
+
+    /** Creates a simulation thread advancing PS by frameDt per frame. */
+    public SimulationThread(ParticleSystem PS, double frameDt)
+    {
+        super("pbf-simulation");
+        this.PS = PS;
+        this.stepper = new TimeStepper(frameDt);
+        setDaemon(true);
+    }
+
+    /** Starts or pauses time stepping. */
+    public void setSimulate(boolean simulate) {
+        this.simulate = simulate;
+    }
+
+    /** Position of the movable wall, applied before each step. */
+    public void setRightWallLoc(double rightWallLoc) {
+        this.rightWallLoc = rightWallLoc;
+    }
+
+    /** Controls the step sizes within each frame. */
+    public TimeStepper getStepper() {
+        return stepper;
+    }
+
+    /** Sets the listener notified after each frame, or null. */
+    public void setStepListener(StepListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Makes the thread wait after every frame until the render thread
+     * has captured that frame's snapshot (see frameCaptured()), so that
+     * an image exporter saves every frame exactly once.
+     */
+    public void setWaitForCapture(boolean wait)
+    {
+        synchronized (captureLock) {
+            waitForCapture = wait;
+            captureLock.notifyAll();
+        }
+    }
+
+    /** Reports that the snapshot with the given sequence number was captured. */
+    public void frameCaptured(long sequence)
+    {
+        synchronized (captureLock) {
+            captured = Math.max(captured, sequence);
+            captureLock.notifyAll();
+        }
+    }
+
+    // Waits until the snapshot sequence was captured, capture waiting is
+    // turned off, or the thread is shut down.
+    private void awaitCapture(long sequence)
+    {
+        synchronized (captureLock) {
+            while (running && waitForCapture && captured < sequence) {
+                try {
+                    captureLock.wait();
+                } catch (InterruptedException e) {
+                    // woken up by shutdown()
+                }
+            }
+        }
+    }
+
+    /** Snapshots published by this thread. */
+    public SnapshotBuffer getSnapshots() {
+        return snapshots;
+    }
+
+    /** Asks the thread to stop after the current step. */
+    public void shutdown() {
+        running = false;
+        interrupt();
+    }
+
+    public void run()
+    {
+        while (running) {
+            if (simulate) {
+                PS.rightWallLoc = rightWallLoc;
+                stepper.advanceFrame(PS);
+
+                StepListener l = listener;
+                if (l != null) l.stepCompleted(PS);
+                long sequence = snapshots.publish(PS, true);
+                if (waitForCapture) awaitCapture(sequence);
+            }
+            else {
+                // Keep publishing while paused so that resets, loads and
+                // created particles show up.
+                snapshots.publish(PS, false);
+                try {
+                    Thread.sleep(IDLE_MS);
+                } catch (InterruptedException e) {
+                    // woken up by shutdown()
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package cs348c.particles;
+
+/**
+ * Axis-aligned region that removes the particles that end a step
+ * inside it. Bounds may be infinite, e.g. to remove everything below a
+ * given height.
+ *
+ * contains() runs on several worker threads at once, so the bounds
+ * must only be changed between steps.
+ */
+public class Sink implements Checkpoint.Stateful
+{
+    private double minX, minY, minZ, maxX, maxY, maxZ;
+
+    public Sink(double minX, double minY, double minZ, double maxX, double maxY, double maxZ)
+    {
+        setBounds(minX, minY, minZ, maxX, maxY, maxZ);
+    }
+
+    public void setBounds(double minX, double minY, double minZ, double maxX, double maxY, double maxZ)
+    {
+        if (!(minX <= maxX && minY <= maxY && minZ <= maxZ)) {
+            throw new IllegalArgumentException("empty sink bounds");
+        }
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.maxZ = maxZ;
+    }
+
+    /** True if (x, y, z) is inside the sink. */
+    public boolean contains(double x, double y, double z)
+    {
+        return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+    }
+
+    public double[] getState() {
+        return new double[] { minX, minY, minZ, maxX, maxY, maxZ };
+    }
+
+    public void setState(double[] state) {
+        setBounds(state[0], state[1], state[2], state[3], state[4], state[5]);
+    }
+}
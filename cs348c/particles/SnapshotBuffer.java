@@ -0,0 +1,51 @@
+package cs348c.particles;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Lock-free triple buffer of FrameSnapshots between one writer (the
+ * simulation thread) and one reader (the render thread).
+ *
+ * Each of the three snapshots is owned by exactly one of: the writer
+ * (back), the reader (front), or neither (pending). Publishing and
+ * acquiring atomically exchange a buffer with pending, so neither side
+ * ever waits for the other and the reader always sees the most recent
+ * complete snapshot.
+ */
+public class SnapshotBuffer
+{
+    private FrameSnapshot back  = new FrameSnapshot();
+    private FrameSnapshot front = new FrameSnapshot();
+    private final AtomicReference<FrameSnapshot> pending =
+        new AtomicReference<FrameSnapshot>(new FrameSnapshot());
+
+    /** Writer-side publication counter. */
+    private long sequence = 0;
+
+    /**
+     * Writer side: captures PS into the back buffer and publishes it,
+     * marked as the result of a simulation frame if stepped is true.
+     * @return Sequence number of the published snapshot.
+     */
+    public long publish(ParticleSystem PS, boolean stepped)
+    {
+        back.capture(PS);
+        back.stepped = stepped;
+        back.sequence = ++sequence;
+        long published = sequence;
+        back = pending.getAndSet(back);
+        return published;
+    }
+
+    /**
+     * Reader side: returns the most recently published snapshot. The
+     * result stays valid until the next call to latest().
+     */
+    public FrameSnapshot latest()
+    {
+        if (pending.get().sequence > front.sequence) {
+            front = pending.getAndSet(front);
+        }
+        return front;
+    }
+}
@@ -0,0 +1,40 @@
+package cs348c.particles;
+
+/**
+ * Convergence record of the density constraint solve of one time step.
+ * The density error of a particle is its compression max(0, C_i), with
+ * C_i = rho_i / RHO - 1 (EQUATION 1); particles at the free surface,
+ * where C_i < 0, do not count as errors.
+ */
+public class SolverStats
+{
+    /** Number of lambda/delta p iterations applied. */
+    public int iterations;
+
+    /** True if the tolerance was met before the iteration cap. */
+    public boolean converged;
+
+    /** Maximum and average density error before the first iteration. */
+    public double initialMaxError, initialAvgError;
+
+    /** Maximum and average density error after the last iteration. */
+    public double maxError, avgError;
+
+    /** Copies all values of other. */
+    public void set(SolverStats other)
+    {
+        iterations      = other.iterations;
+        converged       = other.converged;
+        initialMaxError = other.initialMaxError;
+        initialAvgError = other.initialAvgError;
+        maxError        = other.maxError;
+        avgError        = other.avgError;
+    }
+
+    public String toString()
+    {
+        return iterations+" iterations"+(converged ? " (converged)" : "")+
+            ", max error "+initialMaxError+" -> "+maxError+
+            ", avg error "+initialAvgError+" -> "+avgError;
+    }
+}
@@ -0,0 +1,50 @@
+package cs348c.particles;
+
+/**
+ * Solid sphere centered at the position. Particles inside are pushed
+ * out radially.
+ */
+public class SphereObstacle extends Obstacle
+{
+    private final double radius;
+
+    public SphereObstacle(double x, double y, double z, double radius)
+    {
+        super(x, y, z);
+        if (!(radius > 0)) throw new IllegalArgumentException("radius must be positive: "+radius);
+        this.radius = radius;
+    }
+
+    public void getBounds(double[] b, int offset)
+    {
+        b[offset]     = x - radius;
+        b[offset + 1] = y - radius;
+        b[offset + 2] = z - radius;
+        b[offset + 3] = x + radius;
+        b[offset + 4] = y + radius;
+        b[offset + 5] = z + radius;
+    }
+
+    public int collide(ParticleStore s, int from, int to)
+    {
+        double cx = x, cy = y, cz = z, r = radius, r2 = r * r;
+        double[] sx = s.sx, sy = s.sy, sz = s.sz;
+        int moved = 0;
+        for (int i = from; i < to; i++) {
+            double dx = sx[i] - cx, dy = sy[i] - cy, dz = sz[i] - cz;
+            double d2 = dx * dx + dy * dy + dz * dz;
+            if (d2 >= r2) continue;
+            if (d2 == 0) {
+                // at the center any direction is as good; push up
+                sy[i] = cy + r;
+            } else {
+                double scale = r / Math.sqrt(d2);
+                sx[i] = cx + dx * scale;
+                sy[i] = cy + dy * scale;
+                sz[i] = cz + dz * scale;
+            }
+            moved++;
+        }
+        return moved;
+    }
+}
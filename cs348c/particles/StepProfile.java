@@ -0,0 +1,88 @@
+package cs348c.particles;
+
+import java.util.*;
+
+/**
+ * Timings and counters of one ParticleSystem.advanceTime step, filled
+ * in while a StepProfiler is attached.
+ */
+public class StepProfile
+{
+    /** Phases of a step, in order. */
+    public static final int REORDER   = 0;
+    public static final int PREDICT   = 1;
+    public static final int GRID      = 2;
+    public static final int NEIGHBORS = 3;
+    public static final int DENSITY   = 4;
+    public static final int VORTICITY = 5;
+    public static final int VISCOSITY = 6;
+    public static final int COMMIT    = 7;
+    public static final int PHASES    = 8;
+
+    /** Phase names, as used in exported columns. */
+    public static final String[] PHASE_NAMES = {
+        "reorder", "predict", "grid", "neighbors", "density", "vorticity", "viscosity", "commit"
+    };
+
+    /** Number of the step since the profiler was attached, from 1. */
+    public long step;
+
+    /** Simulation time after the step, and its length. */
+    public double time, dt;
+
+    /** Wall time of each phase, and of the whole step, in ns. */
+    public final long[] phaseNs = new long[PHASES];
+    public long totalNs;
+
+    /**
+     * Density constraint iterations started, and the wall time of each,
+     * in ns. When the solve converged, the last one stopped after its
+     * error check, so this may be one more than SolverStats.iterations.
+     */
+    public int iterations;
+    public long[] iterationNs = new long[0];
+
+    /** Number of particles. */
+    public int particles;
+
+    /** Average and largest neighbor count. */
+    public double avgNeighbors;
+    public int maxNeighbors;
+
+    /** Largest density error after the step (see SolverStats). */
+    public double maxDensityError;
+
+    /** Times a particle was pushed out of an obstacle or back into the
+     *  box (see Collisions), summed over the prediction and every
+     *  constraint iteration. */
+    public long clamped;
+
+    /** Clears the timings and counters for a new step. */
+    void start(long step, int maxIterations)
+    {
+        this.step = step;
+        Arrays.fill(phaseNs, 0);
+        if (iterationNs.length < maxIterations) iterationNs = new long[maxIterations];
+        totalNs = 0;
+        iterations = 0;
+        clamped = 0;
+    }
+
+    /** Copies all values of other. */
+    public void set(StepProfile other)
+    {
+        step = other.step;
+        time = other.time;
+        dt = other.dt;
+        System.arraycopy(other.phaseNs, 0, phaseNs, 0, PHASES);
+        totalNs = other.totalNs;
+        iterations = other.iterations;
+        if (iterationNs.length < iterations) iterationNs = new long[iterations];
+        System.arraycopy(other.iterationNs, 0, iterationNs, 0, iterations);
+        particles = other.particles;
+        avgNeighbors = other.avgNeighbors;
+        maxNeighbors = other.maxNeighbors;
+        maxDensityError = other.maxDensityError;
+        clamped = other.clamped;
+    }
+}
@@ -0,0 +1,174 @@
+package cs348c.particles;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Collects a StepProfile for every step of the ParticleSystem it is
+ * attached to (see ParticleSystem.setProfiler), keeps a rolling summary
+ * over the last steps, and optionally writes every step as a CSV row or
+ * a JSON object per line.
+ *
+ * Times are wall-clock times of each phase as seen by the thread that
+ * calls advanceTime, including waiting for worker threads.
+ */
+public class StepProfiler implements Closeable
+{
+    /** Output formats. */
+    public static final int CSV  = 0;
+    public static final int JSON = 1;
+
+    /** Number of recent steps the summary covers. */
+    private final int window;
+
+    /** Ring of the last window profiles, and the number recorded. */
+    private final StepProfile[] recent;
+    private long recorded = 0;
+
+    /** Per-step output, or null. */
+    private PrintWriter out = null;
+    private int format = CSV;
+    private boolean headerWritten = false;
+
+    /** Creates a profiler that summarizes the last window steps. */
+    public StepProfiler(int window)
+    {
+        if (window < 1) throw new IllegalArgumentException("window must be positive: "+window);
+        this.window = window;
+        recent = new StepProfile[window];
+        for (int k = 0; k < window; k++) recent[k] = new StepProfile();
+    }
+
+    /**
+     * Writes every following step to out in the specified format (CSV
+     * or JSON). The writer is closed by close().
+     */
+    public synchronized void setOutput(Writer out, int format)
+    {
+        if (format != CSV && format != JSON) throw new IllegalArgumentException("unknown format "+format);
+        this.out = new PrintWriter(out);
+        this.format = format;
+        headerWritten = false;
+    }
+
+    /**
+     * Writes every following step to file, as JSON if its name ends
+     * in ".json" and as CSV otherwise.
+     */
+    public void setOutput(File file) throws IOException
+    {
+        int format = file.getName().endsWith(".json") ? JSON : CSV;
+        setOutput(new BufferedWriter(new FileWriter(file)), format);
+    }
+
+    /** Called by ParticleSystem at the end of each profiled step. */
+    synchronized void record(StepProfile p)
+    {
+        recent[(int) (recorded % window)].set(p);
+        recorded++;
+        if (out == null) return;
+        if (format == CSV) {
+            writeCsv(p);
+        } else {
+            writeJson(p);
+        }
+        if (out.checkError()) {
+            System.err.println("OOPS: cannot write step profile, profile output stopped");
+            out = null;
+        }
+    }
+
+    /** Number of the next step to profile, from 1. */
+    synchronized long nextStep() {
+        return recorded + 1;
+    }
+
+    /** Copies the profile of the last step into p. @return False if no step was profiled. */
+    public synchronized boolean getLast(StepProfile p)
+    {
+        if (recorded == 0) return false;
+        p.set(recent[(int) ((recorded - 1) % window)]);
+        return true;
+    }
+
+    /**
+     * Mean and largest time of each phase over the last steps, and the
+     * largest neighbor count and density error among them.
+     */
+    public synchronized String summary()
+    {
+        int count = (int) Math.min(recorded, window);
+        if (count == 0) return "no steps profiled";
+
+        long[] sum = new long[StepProfile.PHASES], max = new long[StepProfile.PHASES];
+        long sumTotal = 0, maxTotal = 0, iterations = 0;
+        int maxNeighbors = 0;
+        double maxError = 0, sumNeighbors = 0;
+        for (int k = 0; k < count; k++) {
+            StepProfile p = recent[k];
+            for (int f = 0; f < StepProfile.PHASES; f++) {
+                sum[f] += p.phaseNs[f];
+                max[f] = Math.max(max[f], p.phaseNs[f]);
+            }
+            sumTotal += p.totalNs;
+            maxTotal = Math.max(maxTotal, p.totalNs);
+            iterations += p.iterations;
+            sumNeighbors += p.avgNeighbors;
+            maxNeighbors = Math.max(maxNeighbors, p.maxNeighbors);
+            maxError = Math.max(maxError, p.maxDensityError);
+        }
+
+        StringBuilder b = new StringBuilder();
+        b.append("last ").append(count).append(" steps, mean/max ms: step ")
+            .append(ms(sumTotal / count)).append('/').append(ms(maxTotal));
+        for (int f = 0; f < StepProfile.PHASES; f++) {
+            b.append(", ").append(StepProfile.PHASE_NAMES[f]).append(' ')
+                .append(ms(sum[f] / count)).append('/').append(ms(max[f]));
+        }
+        b.append("; ").append(String.format(Locale.ROOT, "%.2f", iterations / (double) count)).append(" iterations")
+            .append(", ").append(String.format(Locale.ROOT, "%.1f", sumNeighbors / count)).append(" neighbors (max ")
+            .append(maxNeighbors).append("), max density error ").append(String.format(Locale.ROOT, "%.4g", maxError));
+        return b.toString();
+    }
+
+    /** Flushes and closes the per-step output. */
+    public synchronized void close() throws IOException
+    {
+        if (out == null) return;
+        out.close();
+        out = null;
+    }
+
+    private void writeCsv(StepProfile p)
+    {
+        if (!headerWritten) {
+            out.print("step,time,dt,particles,total_ms");
+            for (String name : StepProfile.PHASE_NAMES) out.print(","+name+"_ms");
+            out.println(",iterations,iteration_ms,avg_neighbors,max_neighbors,max_density_error,clamped");
+            headerWritten = true;
+        }
+        out.print(p.step+","+p.time+","+p.dt+","+p.particles+","+ms(p.totalNs));
+        for (int f = 0; f < StepProfile.PHASES; f++) out.print(","+ms(p.phaseNs[f]));
+        out.print(","+p.iterations+",");
+        // space separated, so the column count stays fixed
+        for (int k = 0; k < p.iterations; k++) out.print((k > 0 ? " " : "")+ms(p.iterationNs[k]));
+        out.println(","+p.avgNeighbors+","+p.maxNeighbors+","+p.maxDensityError+","+p.clamped);
+    }
+
+    private void writeJson(StepProfile p)
+    {
+        out.print("{\"step\":"+p.step+",\"time\":"+p.time+",\"dt\":"+p.dt+
+                  ",\"particles\":"+p.particles+",\"total_ms\":"+ms(p.totalNs));
+        for (int f = 0; f < StepProfile.PHASES; f++) {
+            out.print(",\""+StepProfile.PHASE_NAMES[f]+"_ms\":"+ms(p.phaseNs[f]));
+        }
+        out.print(",\"iterations\":"+p.iterations+",\"iteration_ms\":[");
+        for (int k = 0; k < p.iterations; k++) out.print((k > 0 ? "," : "")+ms(p.iterationNs[k]));
+        out.println("],\"avg_neighbors\":"+p.avgNeighbors+",\"max_neighbors\":"+p.maxNeighbors+
+                    ",\"max_density_error\":"+p.maxDensityError+",\"clamped\":"+p.clamped+"}");
+    }
+
+    private static String ms(long ns) {
+        return String.format(Locale.ROOT, "%.3f", ns * 1e-6);
+    }
+}
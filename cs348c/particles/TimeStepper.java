@@ -0,0 +1,169 @@
+package cs348c.particles;
+
+/**
+ * Advances a ParticleSystem by one frame of simulation time, split into
+ * substeps.
+ *
+ * In adaptive mode each substep is sized by a CFL condition: no particle
+ * may move more than a fraction (the Courant number) of the smoothing
+ * radius H in one substep,
+ *
+ *   dt = courant * H / (v_max + g * dt_max),
+ *
+ * where v_max is the largest particle speed after the previous substep
+ * and g * dt_max bounds the speed gravity adds during the next one. dt is
+ * clamped to [minDt, maxDt] and to the time left in the frame, and the
+ * last two substeps of a frame are balanced so that no tiny remainder
+ * step is taken. In fixed mode the frame is split into a set number of
+ * equal substeps.
+ */
+public class TimeStepper
+{
+    /** Simulation time per frame. */
+    private double frameDt;
+
+    private boolean adaptive = true;
+    private double courant = 0.4;
+    private double minDt = 1e-4;
+    private double maxDt;
+
+    /** Substeps per frame in fixed mode. */
+    private int fixedSubsteps = 1;
+
+    /** Statistics of the last frame. */
+    private int lastSubsteps = 0;
+    private double lastMinDt = 0, lastMaxDt = 0;
+
+    /**
+     * Creates an adaptive stepper for frames of frameDt simulation time,
+     * with substeps of at most frameDt.
+     */
+    public TimeStepper(double frameDt)
+    {
+        setFrameTime(frameDt);
+        this.maxDt = frameDt;
+    }
+
+    /** Sets the simulation time per frame. */
+    public synchronized void setFrameTime(double frameDt)
+    {
+        if (!(frameDt > 0)) throw new IllegalArgumentException("frame time must be positive: "+frameDt);
+        this.frameDt = frameDt;
+    }
+
+    public synchronized double getFrameTime() {
+        return frameDt;
+    }
+
+    /** Chooses between CFL-sized substeps (true) and a fixed substep count. */
+    public synchronized void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    public synchronized boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /** Sets the bounds of adaptive substeps. */
+    public synchronized void setBounds(double minDt, double maxDt)
+    {
+        if (!(minDt > 0) || !(maxDt >= minDt)) {
+            throw new IllegalArgumentException("need 0 < minDt <= maxDt: "+minDt+", "+maxDt);
+        }
+        this.minDt = minDt;
+        this.maxDt = maxDt;
+    }
+
+    public synchronized double getMinDt() {
+        return minDt;
+    }
+
+    public synchronized double getMaxDt() {
+        return maxDt;
+    }
+
+    /** Sets the fraction of H a particle may travel per adaptive substep. */
+    public synchronized void setCourant(double courant)
+    {
+        if (!(courant > 0)) throw new IllegalArgumentException("Courant number must be positive: "+courant);
+        this.courant = courant;
+    }
+
+    public synchronized double getCourant() {
+        return courant;
+    }
+
+    /** Sets the number of substeps per frame in fixed mode. */
+    public synchronized void setFixedSubsteps(int substeps)
+    {
+        if (substeps < 1) throw new IllegalArgumentException("need at least one substep: "+substeps);
+        this.fixedSubsteps = substeps;
+    }
+
+    public synchronized int getFixedSubsteps() {
+        return fixedSubsteps;
+    }
+
+    /** Number of substeps taken by the last frame. */
+    public synchronized int getLastSubsteps() {
+        return lastSubsteps;
+    }
+
+    /** Smallest substep of the last frame. */
+    public synchronized double getLastMinDt() {
+        return lastMinDt;
+    }
+
+    /** Largest substep of the last frame. */
+    public synchronized double getLastMaxDt() {
+        return lastMaxDt;
+    }
+
+    /**
+     * Advances PS by one frame.
+     * @return Number of substeps taken.
+     */
+    public int advanceFrame(ParticleSystem PS)
+    {
+        double frame;
+        boolean adaptive;
+        int fixed;
+        synchronized (this) {
+            frame = frameDt;
+            adaptive = this.adaptive;
+            fixed = fixedSubsteps;
+        }
+
+        int substeps = 0;
+        double smallest = Double.MAX_VALUE, largest = 0;
+        double remaining = frame;
+        while (remaining > 1e-12 * frame) {
+            double dt = adaptive ? nextDt(PS, remaining) : Math.min(frame / fixed, remaining);
+            PS.advanceTime(dt);
+            remaining -= dt;
+            substeps++;
+            smallest = Math.min(smallest, dt);
+            largest = Math.max(largest, dt);
+        }
+
+        synchronized (this) {
+            lastSubsteps = substeps;
+            lastMinDt = smallest;
+            lastMaxDt = largest;
+        }
+        return substeps;
+    }
+
+    /** CFL substep for the current state of PS, within the time left in the frame. */
+    public synchronized double nextDt(ParticleSystem PS, double remaining)
+    {
+        double speed = PS.getMaxSpeed() + Constants.GRAVITY * maxDt;
+        double dt = (speed > 0) ? courant * Constants.H / speed : maxDt;
+        dt = Math.max(minDt, Math.min(maxDt, dt));
+
+        if (dt >= remaining) return remaining;
+        // split the rest evenly rather than leave a sliver for the last step
+        if (2 * dt > remaining) return remaining / 2;
+        return dt;
+    }
+}
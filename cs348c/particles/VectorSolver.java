@@ -0,0 +1,423 @@
+package cs348c.particles;
+
+import java.io.*;
+import java.util.*;
+import jdk.incubator.vector.*;
+
+/**
+ * Single-precision version of the density constraint iterations of
+ * ParticleSystem.advanceTime (EQUATIONS 1-14), on float copies of the
+ * predicted positions and float pair arrays, which halves the memory
+ * traffic of the solve. The pair kernels, which dominate the cost, are
+ * evaluated in SIMD lanes with the incubating Vector API, as is the
+ * delta p accumulation.
+ *
+ * The kernels are always evaluated exactly, even when ParticleSystem
+ * uses tabulated ones. Everything outside the iterations (neighbor
+ * search, vorticity, viscosity, integration) stays in double.
+ *
+ * Needs "--add-modules jdk.incubator.vector" at compile and run time.
+ * Run main() to compare it against the double solver on scene files.
+ */
+public class VectorSolver
+{
+    /** Lanes of the sweeps over contiguous pair and particle arrays. */
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    /**
+     * Lanes of the batches of one particle's neighbors. A particle has
+     * a few dozen neighbors, so wider batches leave most of them to the
+     * scalar remainder loop.
+     */
+    private static final VectorSpecies<Float> BATCH =
+        (SPECIES.length() > 8) ? FloatVector.SPECIES_256 : SPECIES;
+
+    private final float h, h2, poly6Coef, spikyCoef;
+
+    /** 1 / Wpoly6(DELTA_Q), for s_corr. */
+    private final float invPoly6DeltaQ;
+
+    /** Exponent of s_corr as an int, or -1 if Constants.N is not integral. */
+    private final int sCorrPower;
+
+    /** Wpoly6 of a particle with itself, as used by Incompress.updateDensity. */
+    private final float selfW;
+
+    /** Predicted positions, masses, lambdas and position corrections. */
+    private float[] x = new float[0], y = new float[0], z = new float[0];
+    private float[] m = new float[0], lambda = new float[0];
+    private float[] dpx = new float[0], dpy = new float[0], dpz = new float[0];
+
+    /** m_j Wpoly6, Wspiky gradient and s_corr of each neighbor pair, in NeighborList order. */
+    private float[] w = new float[0], gx = new float[0], gy = new float[0], gz = new float[0], sc = new float[0];
+
+    /** Creates a solver for smoothing radius h. */
+    public VectorSolver(double h)
+    {
+        Kernel exact = new Kernel(h);
+        this.h  = (float) h;
+        this.h2 = (float) (h * h);
+        poly6Coef = (float) (315. / (64. * Math.PI * Math.pow(h, 9)));
+        spikyCoef = (float) (45. / (Math.PI * Math.pow(h, 6)));
+        invPoly6DeltaQ = (float) (1 / exact.poly6(Constants.DELTA_Q * Constants.DELTA_Q));
+        sCorrPower = (Constants.N == Math.rint(Constants.N) && Constants.N >= 0) ? (int) Constants.N : -1;
+        selfW = (float) Kernel.Wpoly6(0., 0., 0., h);
+    }
+
+    /** Number of float lanes processed at once. */
+    public static int lanes() {
+        return SPECIES.length();
+    }
+
+    /**
+     * Sizes the float arrays for the particles and neighbor lists of s.
+     * Call once per step after the neighbor lists are built, before
+     * load().
+     */
+    public void ensureCapacity(ParticleStore s)
+    {
+        if (x.length < s.n) {
+            int capacity = s.capacity();
+            x = new float[capacity];
+            y = new float[capacity];
+            z = new float[capacity];
+            m = new float[capacity];
+            lambda = new float[capacity];
+            dpx = new float[capacity];
+            dpy = new float[capacity];
+            dpz = new float[capacity];
+        }
+        int pairs = s.Ni.pairs();
+        if (gx.length < pairs) {
+            int capacity = Math.max(s.Ni.index.length, pairs);
+            w  = new float[capacity];
+            gx = new float[capacity];
+            gy = new float[capacity];
+            gz = new float[capacity];
+            sc = new float[capacity];
+        }
+    }
+
+    /** Copies the predicted positions, masses and lambdas of particles [from, to) to float. */
+    public void load(ParticleStore s, int from, int to)
+    {
+        for (int i = from; i < to; i++) {
+            x[i] = (float) s.sx[i];
+            y[i] = (float) s.sy[i];
+            z[i] = (float) s.sz[i];
+            m[i] = (float) s.m[i];
+            lambda[i] = (float) s.lambda[i];
+        }
+    }
+
+    /**
+     * Copies the predicted positions of particles [from, to) to float
+     * again after they were changed in s, leaving the lambdas that other
+     * chunks may be reading alone.
+     */
+    public void loadPositions(ParticleStore s, int from, int to)
+    {
+        for (int i = from; i < to; i++) {
+            x[i] = (float) s.sx[i];
+            y[i] = (float) s.sy[i];
+            z[i] = (float) s.sz[i];
+        }
+    }
+
+    /** Copies the predicted positions and lambdas of particles [from, to) back to s. */
+    public void store(ParticleStore s, int from, int to)
+    {
+        for (int i = from; i < to; i++) {
+            s.sx[i] = x[i];
+            s.sy[i] = y[i];
+            s.sz[i] = z[i];
+            s.lambda[i] = lambda[i];
+        }
+    }
+
+    /**
+     * Float version of Incompress.calcLambda for particles [from, to):
+     * evaluates and caches the pair kernels, and computes the densities
+     * (stored in s.density) and lambdas.
+     *
+     * The pairs of consecutive particles are contiguous, so the kernels
+     * of all pairs of the range are evaluated in one SIMD sweep over
+     * the pair arrays, after a scalar pass has gathered each pair's
+     * offset and neighbor mass into them. A final pass sums each
+     * particle's pairs.
+     */
+    public void calcLambda(ParticleStore s, int from, int to)
+    {
+        final int[] offsets = s.Ni.offsets, index = s.Ni.index;
+        final int first = offsets[from], last = offsets[to];
+
+        // offsets into gx/gy/gz, neighbor masses into w
+        for (int i = from; i < to; i++) {
+            float xi = x[i], yi = y[i], zi = z[i];
+            for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+                int j = index[k];
+                gx[k] = xi - x[j];
+                gy[k] = yi - y[j];
+                gz[k] = zi - z[j];
+                w[k]  = m[j];
+            }
+        }
+
+        int k = first;
+        for (int bound = first + SPECIES.loopBound(last - first); k < bound; k += SPECIES.length()) {
+            kernels(k);
+        }
+        for (; k < last; k++) {
+            kernel(k);
+        }
+
+        final float invRho = (float) (1 / Constants.RHO);
+        for (int i = from; i < to; i++) {
+            float density = 0, sum = 0, sumX = 0, sumY = 0, sumZ = 0;
+            for (k = offsets[i]; k < offsets[i + 1]; k++) {
+                density += w[k];
+                float cx = gx[k] * invRho, cy = gy[k] * invRho, cz = gz[k] * invRho;
+                sum  += cx * cx + cy * cy + cz * cz;
+                sumX += cx;
+                sumY += cy;
+                sumZ += cz;
+            }
+            density += m[i] * selfW;
+            sum += sumX * sumX + sumY * sumY + sumZ * sumZ;
+
+            // EQUATIONS 1 and 11
+            float Ci = density * invRho - 1;
+            lambda[i] = -Ci / (sum + (float) Constants.EPSILON);
+            s.density[i] = density;
+        }
+    }
+
+    // Turns the pair offsets in gx/gy/gz and masses in w of the lanes
+    // starting at pair k into spiky gradients, m_j Wpoly6 and s_corr.
+    private void kernels(int k)
+    {
+        FloatVector zero = FloatVector.zero(SPECIES);
+        FloatVector rx = FloatVector.fromArray(SPECIES, gx, k);
+        FloatVector ry = FloatVector.fromArray(SPECIES, gy, k);
+        FloatVector rz = FloatVector.fromArray(SPECIES, gz, k);
+        FloatVector r2 = rx.mul(rx).add(ry.mul(ry)).add(rz.mul(rz));
+        VectorMask<Float> in = r2.compare(VectorOperators.GT, 0f)
+            .and(r2.compare(VectorOperators.LT, h2));
+
+        // Wpoly6 = 315/(64 pi h^9) (h^2 - r^2)^3
+        FloatVector d = r2.neg().add(h2);
+        FloatVector poly6 = zero.blend(d.mul(d).mul(d).mul(poly6Coef), in);
+        FloatVector.fromArray(SPECIES, w, k).mul(poly6).intoArray(w, k);
+
+        // grad Wspiky = -45/(pi h^6) (h - r)^2 r / |r|
+        FloatVector r = r2.sqrt();
+        FloatVector hr = r.neg().add(h);
+        FloatVector g = zero.blend(hr.mul(hr).mul(-spikyCoef).div(r), in);
+        rx.mul(g).intoArray(gx, k);
+        ry.mul(g).intoArray(gy, k);
+        rz.mul(g).intoArray(gz, k);
+
+        // EQUATION 13
+        FloatVector ratio = poly6.mul(invPoly6DeltaQ);
+        FloatVector corr;
+        if (sCorrPower >= 0) {
+            corr = FloatVector.broadcast(SPECIES, 1f);
+            for (int e = 0; e < sCorrPower; e++) corr = corr.mul(ratio);
+        } else {
+            corr = ratio.lanewise(VectorOperators.POW, (float) Constants.N);
+        }
+        corr.mul((float) Constants.S_CORR).intoArray(sc, k);
+    }
+
+    // Scalar version of kernels() for pair k.
+    private void kernel(int k)
+    {
+        float rx = gx[k], ry = gy[k], rz = gz[k];
+        float r2 = rx * rx + ry * ry + rz * rz;
+        if (!(r2 > 0f && r2 < h2)) {
+            w[k] = gx[k] = gy[k] = gz[k] = sc[k] = 0f;
+            return;
+        }
+        float d = h2 - r2;
+        float poly6 = d * d * d * poly6Coef;
+        w[k] *= poly6;
+
+        float r = (float) Math.sqrt(r2);
+        float g = (h - r) * (h - r) * -spikyCoef / r;
+        gx[k] = rx * g;
+        gy[k] = ry * g;
+        gz[k] = rz * g;
+
+        float ratio = poly6 * invPoly6DeltaQ;
+        float corr;
+        if (sCorrPower >= 0) {
+            corr = 1f;
+            for (int e = 0; e < sCorrPower; e++) corr *= ratio;
+        } else {
+            corr = (float) Math.pow(ratio, Constants.N);
+        }
+        sc[k] = corr * (float) Constants.S_CORR;
+    }
+
+    /**
+     * Float version of Incompress.calcDeltaP for particles [from, to).
+     * Full batches of neighbors gather their lambdas in SIMD lanes; the
+     * remainder of each particle's neighbors is summed in scalar code.
+     */
+    public void calcDeltaP(ParticleStore s, int from, int to)
+    {
+        final int[] offsets = s.Ni.offsets, index = s.Ni.index;
+        final int L = BATCH.length();
+        final float invRho = (float) (1 / Constants.RHO);
+        final FloatVector zero = FloatVector.zero(BATCH);
+
+        for (int i = from; i < to; i++) {
+            float lambdaI = lambda[i];
+            FloatVector li = FloatVector.broadcast(BATCH, lambdaI);
+            FloatVector vx = zero, vy = zero, vz = zero;
+
+            int k = offsets[i], end = offsets[i + 1];
+            for (; k + L <= end; k += L) {
+                FloatVector lj = FloatVector.fromArray(BATCH, lambda, 0, index, k);
+                FloatVector c  = li.add(lj).sub(FloatVector.fromArray(BATCH, sc, k));
+                vx = vx.add(FloatVector.fromArray(BATCH, gx, k).mul(c));
+                vy = vy.add(FloatVector.fromArray(BATCH, gy, k).mul(c));
+                vz = vz.add(FloatVector.fromArray(BATCH, gz, k).mul(c));
+            }
+            float dx = vx.reduceLanes(VectorOperators.ADD);
+            float dy = vy.reduceLanes(VectorOperators.ADD);
+            float dz = vz.reduceLanes(VectorOperators.ADD);
+            for (; k < end; k++) {
+                float c = lambdaI + lambda[index[k]] - sc[k];
+                dx += gx[k] * c;
+                dy += gy[k] * c;
+                dz += gz[k] * c;
+            }
+            dpx[i] = dx * invRho;
+            dpy[i] = dy * invRho;
+            dpz[i] = dz * invRho;
+        }
+    }
+
+    /**
+     * Moves particles [from, to) by their position corrections and
+     * clamps them to the box [0, right] x [0, height] x [0, depth].
+     * @return Number of particles that were outside the box.
+     */
+    public int applyDeltaP(int from, int to, double right, double height, double depth)
+    {
+        float maxX = (float) right, maxY = (float) height, maxZ = (float) depth;
+        int clamped = 0;
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            FloatVector px = FloatVector.fromArray(SPECIES, x, i).add(FloatVector.fromArray(SPECIES, dpx, i));
+            FloatVector py = FloatVector.fromArray(SPECIES, y, i).add(FloatVector.fromArray(SPECIES, dpy, i));
+            FloatVector pz = FloatVector.fromArray(SPECIES, z, i).add(FloatVector.fromArray(SPECIES, dpz, i));
+            VectorMask<Float> out = outside(px, maxX).or(outside(py, maxY)).or(outside(pz, maxZ));
+            clamped += out.trueCount();
+            px.max(0f).min(maxX).intoArray(x, i);
+            py.max(0f).min(maxY).intoArray(y, i);
+            pz.max(0f).min(maxZ).intoArray(z, i);
+        }
+        for (; i < to; i++) {
+            float px = x[i] + dpx[i], py = y[i] + dpy[i], pz = z[i] + dpz[i];
+            if (px < 0f || px > maxX || py < 0f || py > maxY || pz < 0f || pz > maxZ) clamped++;
+            x[i] = Math.min(Math.max(px, 0f), maxX);
+            y[i] = Math.min(Math.max(py, 0f), maxY);
+            z[i] = Math.min(Math.max(pz, 0f), maxZ);
+        }
+        return clamped;
+    }
+
+    /**
+     * Moves particles [from, to) by their position corrections without
+     * clamping them, for steps where Collisions.collide clamps them to
+     * the box after handling the obstacles.
+     */
+    public void applyDeltaP(int from, int to)
+    {
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, x, i).add(FloatVector.fromArray(SPECIES, dpx, i)).intoArray(x, i);
+            FloatVector.fromArray(SPECIES, y, i).add(FloatVector.fromArray(SPECIES, dpy, i)).intoArray(y, i);
+            FloatVector.fromArray(SPECIES, z, i).add(FloatVector.fromArray(SPECIES, dpz, i)).intoArray(z, i);
+        }
+        for (; i < to; i++) {
+            x[i] += dpx[i];
+            y[i] += dpy[i];
+            z[i] += dpz[i];
+        }
+    }
+
+    private static VectorMask<Float> outside(FloatVector p, float max) {
+        return p.lt(0f).or(p.compare(VectorOperators.GT, max));
+    }
+
+    /**
+     * Compares the single-precision solver against the double one:
+     * steps each scene with both and prints how far the particles drift
+     * apart, relative to the smoothing radius H, after the first and
+     * the last step, and the density errors of both. Small per-step
+     * differences grow over many steps, as the flow is chaotic.
+     *
+     * Usage: java --add-modules jdk.incubator.vector cs348c.particles.VectorSolver
+     *        [-steps 100] [-dt 0.01] scene.txt ...
+     */
+    public static void main(String[] args) throws IOException
+    {
+        int steps = 100;
+        double dt = HeadlessRunner.DEFAULT_DT;
+        List<String> scenes = new ArrayList<String>();
+        for (int k = 0; k < args.length; k++) {
+            if      (args[k].equals("-steps")) steps = Integer.parseInt(args[++k]);
+            else if (args[k].equals("-dt"))    dt    = Double.parseDouble(args[++k]);
+            else scenes.add(args[k]);
+        }
+        if (scenes.isEmpty()) {
+            scenes.add("frames/dam-break.txt");
+            scenes.add("frames/cube-drop.txt");
+        }
+
+        System.out.println(lanes()+" float lanes");
+        for (String scene : scenes) {
+            ParticleSystem exact = new ParticleSystem();
+            ParticleSystem single = new ParticleSystem();
+            single.setSinglePrecision(true);
+            FrameIO.loadFrame(exact, new File(scene));
+            FrameIO.loadFrame(single, new File(scene));
+            System.out.println(scene+": "+exact.S.size()+" particles, "+steps+" steps");
+
+            SolverStats a = new SolverStats(), b = new SolverStats();
+            double worstA = 0, worstB = 0;
+            long timeA = 0, timeB = 0;
+            for (int step = 1; step <= steps; step++) {
+                timeA -= System.nanoTime();
+                exact.advanceTime(dt);
+                timeA += System.nanoTime();
+                timeB -= System.nanoTime();
+                single.advanceTime(dt);
+                timeB += System.nanoTime();
+                exact.getSolverStats(a);
+                single.getSolverStats(b);
+                worstA = Math.max(worstA, a.maxError);
+                worstB = Math.max(worstB, b.maxError);
+                if (step == 1 || step == steps) printDifference(exact.S, single.S, step);
+            }
+            System.out.println("  max density error: double "+worstA+", float "+worstB);
+            System.out.println("  time: double "+(timeA * 1e-9)+"s, float "+(timeB * 1e-9)+"s");
+        }
+    }
+
+    private static void printDifference(ParticleStore s, ParticleStore t, int step)
+    {
+        double max = 0, sum = 0;
+        for (int i = 0; i < s.n; i++) {
+            double dx = s.px[i] - t.px[i], dy = s.py[i] - t.py[i], dz = s.pz[i] - t.pz[i];
+            double d = Math.sqrt(dx * dx + dy * dy + dz * dz);
+            max = Math.max(max, d);
+            sum += d;
+        }
+        System.out.println("  position difference / H after step "+step+": "+
+                           (sum / Math.max(1, s.n) / Constants.H)+" average, "+(max / Constants.H)+" max");
+    }
+}
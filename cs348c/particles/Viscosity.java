@@ -2,24 +2,23 @@ package cs348c.particles;
 
 import java.util.*;
 import javax.vecmath.*;
-import com.jogamp.opengl.*;
-import com.jogamp.opengl.util.glsl.*;
 
 //This class adds viscosity behavior
 public class Viscosity {
 
     //EQUATION 17
-	public static Vector3d XPSHViscosity(Particle p) {
-        Vector3d result = new Vector3d(0., 0., 0.);
+    // writes the XSPH viscosity correction of particle i into result
+	public static void XPSHViscosity(ParticleStore s, int i, Tuple3d result) {
+        NeighborList Ni = s.Ni;
+        double rx = 0., ry = 0., rz = 0.;
 
-        for (Particle q : p.Ni) {
-            Vector3d vij = VMath.subtract(q.v, p.v);
-            Vector3d pij = VMath.subtract(p.x_star, q.x_star);
-            double W = Kernel.Wpoly6(pij, Constants.H);
-            vij.scale(W);
-            result.add(vij);                    
+        for (int k = Ni.offsets[i]; k < Ni.offsets[i + 1]; k++) {
+            int j = Ni.index[k];
+            double W = Ni.w[k];
+            rx += (s.vx[j] - s.vx[i]) * W;
+            ry += (s.vy[j] - s.vy[i]) * W;
+            rz += (s.vz[j] - s.vz[i]) * W;
         }
-        result.scale(Constants.C);
-        return result;
+        result.set(rx * Constants.C, ry * Constants.C, rz * Constants.C);
     }
-}
\ No newline at end of file
+}
@@ -2,40 +2,58 @@ package cs348c.particles;
 
 import java.util.*;
 import javax.vecmath.*;
-import com.jogamp.opengl.*;
-import com.jogamp.opengl.util.glsl.*;
 
 public class Vorticity {
 	//EQUATION 15
-    public static Vector3d calcVorticity(Particle p) {
-        Vector3d w = new Vector3d(0., 0., 0.);
-        for (Particle q : p.Ni) {
-            Vector3d vij = VMath.subtract(q.v, p.v);
-            Vector3d pji = VMath.subtract(p.x_star, q.x_star);
-            Vector3d cp = new Vector3d(0., 0., 0.);
-            cp.cross(vij, Kernel.Wspiky(pji, Constants.H));
-            w.add(cp);
+    public static void calcVorticity(ParticleStore s, int i) {
+        NeighborList Ni = s.Ni;
+        double wx = 0., wy = 0., wz = 0.;
+        for (int k = Ni.offsets[i]; k < Ni.offsets[i + 1]; k++) {
+            int j = Ni.index[k];
+            double vx = s.vx[j] - s.vx[i];
+            double vy = s.vy[j] - s.vy[i];
+            double vz = s.vz[j] - s.vz[i];
+            double gx = Ni.gx[k], gy = Ni.gy[k], gz = Ni.gz[k];
+            // vij x gradW
+            wx += vy * gz - vz * gy;
+            wy += gx * vz - gz * vx;
+            wz += vx * gy - vy * gx;
         }
-        return w;
+        s.wx[i] = wx;
+        s.wy[i] = wy;
+        s.wz[i] = wz;
     }
 
-    private static Vector3d calcEta(Particle p) {
-        Vector3d eta = new Vector3d(0., 0., 0.);
-        for (Particle q : p.Ni) {
-            Vector3d grad = Kernel.Wspiky(VMath.subtract(p.x_star, q.x_star), Constants.H);
-            q.density = Incompress.getDensity(q);
-            grad.scale(q.m / q.density * q.omega.length());
-            eta.add(grad);
+    // reads s.density, which must be up to date for all neighbors;
+    // writes the normalized eta into out
+    private static void calcEta(ParticleStore s, int i, Tuple3d out) {
+        NeighborList Ni = s.Ni;
+        double ex = 0., ey = 0., ez = 0.;
+        for (int k = Ni.offsets[i]; k < Ni.offsets[i + 1]; k++) {
+            int j = Ni.index[k];
+            double omega = Math.sqrt(s.wx[j] * s.wx[j] + s.wy[j] * s.wy[j] + s.wz[j] * s.wz[j]);
+            double scale = s.m[j] / s.density[j] * omega;
+            ex += Ni.gx[k] * scale;
+            ey += Ni.gy[k] * scale;
+            ez += Ni.gz[k] * scale;
+        }
+        double len = Math.sqrt(ex * ex + ey * ey + ez * ez);
+        if (len == 0) {
+            out.set(ex, ey, ez);
+        } else {
+            out.set(ex / len, ey / len, ez / len);
         }
-        return VMath.norm(eta);
     }
 
     //EQUATION 16
-    public static Vector3d calcFVort(Particle p) {
-        Vector3d eta = calcEta(p);  
-        Vector3d f = new Vector3d(0., 0., 0.);
-        f.cross(eta, p.omega);
-        f.scale(Constants.V_EPSILON);
-        return f;
+    // writes the vorticity confinement correction of particle i into f
+    public static void calcFVort(ParticleStore s, int i, Tuple3d f) {
+        calcEta(s, i, f);
+        double ex = f.x, ey = f.y, ez = f.z;
+        double wx = s.wx[i], wy = s.wy[i], wz = s.wz[i];
+        // eta x omega
+        f.x = (ey * wz - ez * wy) * Constants.V_EPSILON;
+        f.y = (wx * ez - wz * ex) * Constants.V_EPSILON;
+        f.z = (ex * wy - ey * wx) * Constants.V_EPSILON;
     }
-}
\ No newline at end of file
+}
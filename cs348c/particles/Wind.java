@@ -0,0 +1,79 @@
+package cs348c.particles;
+
+import com.jogamp.opengl.*;
+
+/**
+ * Directional wind field: drags every particle towards the wind
+ * velocity, f = m * drag * (w(t) - v), where the wind w(t) blows with
+ * a constant velocity whose magnitude optionally oscillates in gusts,
+ *
+ *   w(t) = w * (1 + gust * sin(2 pi * frequency * t)).
+ */
+public class Wind implements Force, Checkpoint.Stateful
+{
+    private double wx, wy, wz;
+    private double drag;
+    private double gust = 0, frequency = 0;
+
+    public Wind(double wx, double wy, double wz, double drag)
+    {
+        setVelocity(wx, wy, wz);
+        setDrag(drag);
+    }
+
+    public void setVelocity(double wx, double wy, double wz)
+    {
+        this.wx = wx;
+        this.wy = wy;
+        this.wz = wz;
+    }
+
+    /** Sets the drag coefficient, the inverse of the time the wind takes to carry a particle along. */
+    public void setDrag(double drag)
+    {
+        if (drag < 0) throw new IllegalArgumentException("negative drag: "+drag);
+        this.drag = drag;
+    }
+
+    /** Sets the relative amplitude and the frequency of gusts; 0 for a steady wind. */
+    public void setGusts(double gust, double frequency)
+    {
+        this.gust = gust;
+        this.frequency = frequency;
+    }
+
+    public void applyForce(ParticleStore s, int from, int to, double time, double dt)
+    {
+        double scale = 1 + gust * Math.sin(2 * Math.PI * frequency * time);
+        double ux = wx * scale, uy = wy * scale, uz = wz * scale;
+        double c = drag;
+        double[] m = s.m, vx = s.vx, vy = s.vy, vz = s.vz, fx = s.fx, fy = s.fy, fz = s.fz;
+        for (int i = from; i < to; i++) {
+            double k = m[i] * c;
+            fx[i] += k * (ux - vx[i]);
+            fy[i] += k * (uy - vy[i]);
+            fz[i] += k * (uz - vz[i]);
+        }
+    }
+
+    /** Draws the wind direction from the center of the unit box. */
+    public void display(GL2 gl)
+    {
+        gl.glColor3d(0.3, 0.9, 0.3);
+        gl.glBegin(GL.GL_LINES);
+        gl.glVertex3d(0.5, 0.5, 0.5);
+        gl.glVertex3d(0.5 + 0.1 * wx, 0.5 + 0.1 * wy, 0.5 + 0.1 * wz);
+        gl.glEnd();
+    }
+
+    public double[] getState() {
+        return new double[] { wx, wy, wz, drag, gust, frequency };
+    }
+
+    public void setState(double[] state)
+    {
+        setVelocity(state[0], state[1], state[2]);
+        setDrag(state[3]);
+        setGusts(state[4], state[5]);
+    }
+}
@@ -0,0 +1,138 @@
+package cs348c.particles;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Fixed pool of worker threads that runs per-particle solver phases
+ * over index ranges. Each call to parallelFor() is a barrier: it returns
+ * only after every chunk has finished, so consecutive phases never
+ * overlap.
+ *
+ * Phases must only write the slots of their own range; then the result
+ * does not depend on the thread count or on scheduling.
+ */
+public class WorkerPool
+{
+    /** Body of a parallel loop over the index range [from, to). */
+    public interface RangeTask {
+        void run(int from, int to);
+    }
+
+    /**
+     * Body of a parallel loop over chunk number chunk, which covers the
+     * index range [from, to).
+     */
+    public interface ChunkTask {
+        void run(int chunk, int from, int to);
+    }
+
+    /** Chunks per thread, for load balancing between dense and sparse regions. */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /** Ranges smaller than this run on the calling thread. */
+    private static final int MIN_PARALLEL_SIZE = 256;
+
+    private final int threads;
+
+    /** Null when running single-threaded. */
+    private final ExecutorService executor;
+
+    /**
+     * Creates a pool with the specified number of threads. One thread
+     * means every loop runs serially on the caller.
+     */
+    public WorkerPool(int threads)
+    {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1: "+threads);
+        this.threads = threads;
+        if (threads == 1) {
+            executor = null;
+        } else {
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private int count = 0;
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "pbf-worker-" + (count++));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    /** Number of worker threads. */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Number of chunks forEachChunk() splits [0, n) into. Depends only
+     * on n and the thread count, so callers can size per-chunk scratch
+     * space up front.
+     */
+    public int chunkCount(int n)
+    {
+        if (executor == null || n < MIN_PARALLEL_SIZE) return 1;
+        return Math.min(n, threads * CHUNKS_PER_THREAD);
+    }
+
+    /**
+     * Runs task over [0, n) split into contiguous chunks, and waits for
+     * all of them to complete.
+     */
+    public void parallelFor(int n, final RangeTask task)
+    {
+        forEachChunk(n, new ChunkTask() {
+            public void run(int chunk, int from, int to) {
+                task.run(from, to);
+            }
+        });
+    }
+
+    /**
+     * Runs task on each of the chunkCount(n) contiguous chunks of
+     * [0, n), and waits for all of them to complete. Chunk c always
+     * covers the same range for a given n.
+     */
+    public void forEachChunk(int n, final ChunkTask task)
+    {
+        final int chunks = chunkCount(n);
+        if (chunks == 1) {
+            task.run(0, 0, n);
+            return;
+        }
+
+        List<Callable<Void>> jobs = new ArrayList<Callable<Void>>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            final int chunk = c;
+            final int from  = (int) ((long) n * c / chunks);
+            final int to    = (int) ((long) n * (c + 1) / chunks);
+            jobs.add(new Callable<Void>() {
+                public Void call() {
+                    task.run(chunk, from, to);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Void> f : executor.invokeAll(jobs)) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for solver phase", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /** Stops the worker threads. The pool cannot be used afterwards. */
+    public void shutdown()
+    {
+        if (executor != null) executor.shutdown();
+    }
+}
@@ -1,14 +1,27 @@
 #version 120
 
-// Standard diffuse shader. Code originally from Edward Angel's OpenGL: A Primer.
+// Shades a point sprite as a sphere: the normal is reconstructed from the
+// position within the sprite, and the depth is moved onto the sphere's
+// surface so that overlapping particles intersect correctly.
+// Diffuse lighting code originally from Edward Angel's OpenGL: A Primer.
 
+uniform float radius;
+
+varying vec3 center;
 varying vec3 L;
-varying vec3 N;
+varying vec4 color;
 
 void main()
 {
-  vec3 normal  = normalize(N);
-  vec3 light   = normalize(L);
+  vec2 p = gl_PointCoord * 2.0 - 1.0;
+  float r2 = dot(p, p);
+  if (r2 > 1.0) discard;
+
+  vec3 normal = vec3(p.x, -p.y, sqrt(1.0 - r2));
+  vec4 surface = gl_ProjectionMatrix * vec4(center + radius * normal, 1.0);
+  gl_FragDepth = 0.5 * (surface.z / surface.w) + 0.5;
+
+  vec3 light = normalize(L);
   gl_FragColor = max(dot(normal, light), 0.0) *
-          gl_FrontMaterial.diffuse*gl_LightSource[0].diffuse;
+          color*gl_LightSource[0].diffuse;
 }
@@ -1,16 +1,55 @@
 #version 120
 
-// Standard diffuse shader. Code originally from Edward Angel's OpenGL: A Primer.
+// Particles are drawn as point sprites shaded like spheres (see frag.glsl).
+// Diffuse lighting code originally from Edward Angel's OpenGL: A Primer.
 
-varying vec3 N;
+attribute vec3 position;
+
+// density, squared speed, highlight flag (0 or 1)
+attribute vec3 shade;
+
+uniform float radius;          // sphere radius in world units
+uniform float viewportHeight;  // in pixels
+
+varying vec3 center;  // sphere center in eye space
 varying vec3 L;
+varying vec4 color;
 
 void main()
 {
-  gl_Position = gl_ModelViewProjectionMatrix * gl_Vertex;
-  vec4 eyePosition = gl_ModelViewMatrix * gl_Vertex;
+  vec4 eyePosition = gl_ModelViewMatrix * vec4(position, 1.0);
+  gl_Position = gl_ProjectionMatrix * eyePosition;
+  center = eyePosition.xyz;
+
+  // projected diameter in pixels
+  gl_PointSize = viewportHeight * gl_ProjectionMatrix[1][1] * radius / -eyePosition.z;
+
   vec4 eyeLightPos = gl_LightSource[0].position;
-  
-  N = normalize(gl_NormalMatrix * gl_Normal);
   L = normalize(eyeLightPos.xyz - eyePosition.xyz);
-}
\ No newline at end of file
+
+  // COLOR: DEFAULT CYAN; GREEN IF HIGHLIGHTED
+  float density = shade.x;
+  float speedSq = shade.y;
+  float y       = position.y;
+  vec4 c = vec4(0.0, 1.0, 1.0, 1.0);
+  if (shade.z > 0.5) c.b = 0.0;
+
+  // Hack to make things more colorful/interesting
+  c.g = y;
+  if (density > 5300.0) {
+    if (density > 6500.0) {
+      c.g = 0.0;
+    } else {
+      c.r = (density - 5300.0) / 1500.0;
+      c.g = (density - 5300.0) / (6500.0 - 5300.0);
+    }
+  } else if (speedSq > 1.0) {
+    c.r = 1.0;
+    c.g = 1.0;
+  }
+  if (y <= 0.02) {
+    c.g = y;
+    c.r = 0.0;
+  }
+  color = c;
+}